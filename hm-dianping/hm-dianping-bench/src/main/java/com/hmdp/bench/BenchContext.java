@@ -0,0 +1,74 @@
+package com.hmdp.bench;
+
+import com.hmdp.HmDianPingApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * 基准测试用的应用上下文 本地redis-server + H2内存库
+ * 基准测试不启动web服务器 压测(hm-dianping-loadtest)在随机端口启动web服务器
+ */
+public class BenchContext implements AutoCloseable {
+
+    public static final String JDBC_URL = "jdbc:h2:mem:hmdp;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+    private final EmbeddedRedis redis;
+
+    private final ConfigurableApplicationContext context;
+
+    private BenchContext(EmbeddedRedis redis, ConfigurableApplicationContext context) {
+        this.redis = redis;
+        this.context = context;
+    }
+
+    public static BenchContext start() throws Exception {
+        return start(false);
+    }
+
+    /**
+     * @param web 是否在随机端口启动web服务器 端口通过 getServerPort 获取
+     */
+    public static BenchContext start(boolean web) throws Exception {
+        EmbeddedRedis redis = EmbeddedRedis.start();
+        try {
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(HmDianPingApplication.class)
+                    .web(web ? WebApplicationType.SERVLET : WebApplicationType.NONE)
+                    //命令行参数的优先级高于application.yaml
+                    .run("--server.port=0",
+                            "--management.server.port=0",
+                            "--spring.redis.host=127.0.0.1",
+                            "--spring.redis.port=" + redis.getPort(),
+                            "--spring.datasource.driver-class-name=org.h2.Driver",
+                            "--spring.datasource.url=" + JDBC_URL,
+                            "--spring.datasource.username=sa",
+                            "--spring.datasource.password=",
+                            "--spring.datasource.schema=classpath:schema-h2.sql",
+                            "--spring.datasource.initialization-mode=always",
+                            "--hmdp.seckill.preheat.on-startup=false",
+                            "--logging.level.com.hmdp=warn");
+            return new BenchContext(redis, context);
+        } catch (Exception e) {
+            redis.close();
+            throw e;
+        }
+    }
+
+    public int getRedisPort() {
+        return redis.getPort();
+    }
+
+    public int getServerPort() {
+        return context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+    }
+
+    public <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        redis.close();
+    }
+}
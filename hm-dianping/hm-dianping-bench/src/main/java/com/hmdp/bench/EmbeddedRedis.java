@@ -0,0 +1,93 @@
+package com.hmdp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 在本机随机端口启动一个redis-server进程 代替真实的redis
+ * 不做持久化 关闭时直接结束进程
+ * redis-server的路径由 -Dredis.server 指定 默认在PATH中查找
+ */
+public class EmbeddedRedis implements AutoCloseable {
+
+    private static final long START_TIMEOUT_MILLIS = 10_000;
+
+    private final int port;
+
+    private final Process process;
+
+    private EmbeddedRedis(int port, Process process) {
+        this.port = port;
+        this.process = process;
+    }
+
+    public static EmbeddedRedis start() throws IOException, InterruptedException {
+        int port = freePort();
+        String binary = System.getProperty("redis.server", "redis-server");
+        Process process = new ProcessBuilder(binary,
+                "--port", String.valueOf(port),
+                "--bind", "127.0.0.1",
+                "--save", "",
+                "--appendonly", "no")
+                .redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "hmdp-bench-redis-" + port + ".log"))
+                .start();
+        EmbeddedRedis redis = new EmbeddedRedis(port, process);
+        redis.awaitReady();
+        return redis;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 等到 PING 返回 PONG
+     */
+    private void awaitReady() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("redis-server启动失败 exit=" + process.exitValue());
+            }
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write("PING\r\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                InputStream in = socket.getInputStream();
+                byte[] reply = new byte[7];
+                int n = in.read(reply);
+                if (n > 0 && new String(reply, 0, n, StandardCharsets.UTF_8).startsWith("+PONG")) {
+                    return;
+                }
+            } catch (IOException e) {
+                //还没开始监听
+            }
+            Thread.sleep(50);
+        }
+        close();
+        throw new IOException("redis-server在" + START_TIMEOUT_MILLIS + "ms内没有就绪 port=" + port);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+        }
+    }
+}
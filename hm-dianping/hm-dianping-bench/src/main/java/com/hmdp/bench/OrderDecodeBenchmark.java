@@ -0,0 +1,53 @@
+package com.hmdp.bench;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订单消费者把stream消息转成订单对象的开销 不需要redis
+ * fillBeanWithMap 为消费者现在的写法 manual 为直接取字段的对照组
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderDecodeBenchmark {
+
+    //与 seckill.lua 中 XADD 的字段一致
+    private final Map<Object, Object> message = new HashMap<>();
+
+    {
+        message.put("userId", "1010");
+        message.put("voucherId", "10");
+        message.put("id", "360287970189639681");
+    }
+
+    @Benchmark
+    public VoucherOrder fillBeanWithMap() {
+        return BeanUtil.fillBeanWithMap(message, new VoucherOrder(), true);
+    }
+
+    @Benchmark
+    public VoucherOrder manual() {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(Long.valueOf(message.get("id").toString()));
+        order.setUserId(Long.valueOf(message.get("userId").toString()));
+        order.setVoucherId(Long.valueOf(message.get("voucherId").toString()));
+        return order;
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.bench;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀下单 seckillVoucher 的吞吐量 即 seckill.lua 的执行路径
+ * newUser     每次都是新用户 扣库存 + 写订单消息
+ * repeatUser  同一个用户重复下单 脚本在一人一单处返回 只有一次往返
+ * 后台的订单消费者会同时把订单写入H2 与线上一样
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class SeckillBenchmark {
+
+    private static final AtomicLong USER_IDS = new AtomicLong();
+
+    private BenchContext context;
+
+    private IVoucherOrderService voucherOrderService;
+
+    private Long voucherId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        context = BenchContext.start();
+        voucherOrderService = context.getBean(IVoucherOrderService.class);
+        //库存足够大 测量期间不会卖完
+        Voucher voucher = new Voucher()
+                .setShopId(1L)
+                .setTitle("bench")
+                .setPayValue(100L)
+                .setActualValue(200L)
+                .setType(1)
+                .setStatus(1)
+                .setStock(100_000_000)
+                .setBeginTime(LocalDateTime.now().minusDays(1))
+                .setEndTime(LocalDateTime.now().plusDays(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        voucherId = voucher.getId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class RepeatUser {
+        private final UserDTO user = createUser();
+    }
+
+    @Benchmark
+    public Result newUser() {
+        UserHolder.saveUser(createUser());
+        return voucherOrderService.seckillVoucher(voucherId);
+    }
+
+    @Benchmark
+    public Result repeatUser(RepeatUser state) {
+        UserHolder.saveUser(state.user);
+        return voucherOrderService.seckillVoucher(voucherId);
+    }
+
+    private static UserDTO createUser() {
+        UserDTO user = new UserDTO();
+        user.setId(USER_IDS.incrementAndGet());
+        return user;
+    }
+}
@@ -0,0 +1,78 @@
+-- 基准测试与压测用到的表 与 db/hmdp.sql 中的表结构一致 H2 MySQL模式
+DROP TABLE IF EXISTS tb_voucher;
+CREATE TABLE tb_voucher (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  shop_id BIGINT NULL,
+  title VARCHAR(255) NOT NULL,
+  sub_title VARCHAR(255) NULL,
+  rules VARCHAR(1024) NULL,
+  pay_value BIGINT NOT NULL,
+  actual_value BIGINT NOT NULL,
+  type TINYINT NOT NULL DEFAULT 0,
+  status TINYINT NOT NULL DEFAULT 1,
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+
+DROP TABLE IF EXISTS tb_seckill_voucher;
+CREATE TABLE tb_seckill_voucher (
+  voucher_id BIGINT NOT NULL,
+  stock INT NOT NULL,
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  begin_time TIMESTAMP NOT NULL,
+  end_time TIMESTAMP NOT NULL,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (voucher_id)
+);
+
+DROP TABLE IF EXISTS tb_voucher_order;
+CREATE TABLE tb_voucher_order (
+  id BIGINT NOT NULL,
+  user_id BIGINT NOT NULL,
+  voucher_id BIGINT NOT NULL,
+  pay_type TINYINT NOT NULL DEFAULT 1,
+  status TINYINT NOT NULL DEFAULT 1,
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  pay_time TIMESTAMP NULL,
+  use_time TIMESTAMP NULL,
+  refund_time TIMESTAMP NULL,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  active TINYINT AS (CASE WHEN status = 4 THEN NULL ELSE 1 END),
+  PRIMARY KEY (id),
+  UNIQUE (user_id, voucher_id, active)
+);
+CREATE INDEX idx_voucher_id ON tb_voucher_order (voucher_id);
+
+DROP TABLE IF EXISTS tb_user;
+CREATE TABLE tb_user (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  phone VARCHAR(11) NOT NULL,
+  password VARCHAR(128) NULL DEFAULT '',
+  nick_name VARCHAR(32) NULL DEFAULT '',
+  icon VARCHAR(255) NULL DEFAULT '',
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id),
+  UNIQUE (phone)
+);
+
+DROP TABLE IF EXISTS tb_shop;
+CREATE TABLE tb_shop (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  name VARCHAR(128) NOT NULL,
+  type_id BIGINT NOT NULL,
+  images VARCHAR(1024) NOT NULL,
+  area VARCHAR(128) NULL,
+  address VARCHAR(255) NOT NULL,
+  x DOUBLE NOT NULL,
+  y DOUBLE NOT NULL,
+  avg_price BIGINT NULL,
+  sold INT NOT NULL,
+  comments INT NOT NULL,
+  score INT NOT NULL,
+  open_hours VARCHAR(32) NULL,
+  create_time TIMESTAMP NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time TIMESTAMP NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
@@ -0,0 +1,230 @@
+package com.hmdp.loadtest;
+
+import cn.hutool.core.map.MapUtil;
+import cn.hutool.http.HttpRequest;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.bench.BenchContext;
+import com.hmdp.dto.Result;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_CODE_KEY;
+
+/**
+ * 端到端秒杀压测
+ * 1.通过 /voucher/seckill 创建秒杀券
+ * 2.通过 /user/code /user/login 登录N个用户 验证码直接从redis读取
+ * 3.并发请求 /voucher-order/seckill/{id}
+ * 4.等待订单消息全部消费 统计耗时
+ * 5.校验 没有超卖 一人一单 redis库存与数据库库存一致 成功的请求都已落库
+ * 6.输出吞吐量 p50/p99/p999延迟 与stream排空耗时
+ * 任意一项校验失败时退出码为1
+ */
+public class FlashSaleLoadTest {
+
+    private static final String PHONE_PREFIX = "138";
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = new LoadTestOptions(args);
+        BenchContext context = null;
+        String baseUrl = options.baseUrl();
+        String redisHost = options.redisHost();
+        int redisPort = options.redisPort();
+        if (options.embedded()) {
+            //本进程内启动应用 本地redis-server + H2
+            context = BenchContext.start(true);
+            baseUrl = "http://127.0.0.1:" + context.getServerPort();
+            redisHost = "127.0.0.1";
+            redisPort = context.getRedisPort();
+            args = Arrays.copyOf(args, args.length + 3);
+            args[args.length - 3] = "--jdbc-url=" + BenchContext.JDBC_URL;
+            args[args.length - 2] = "--jdbc-user=sa";
+            args[args.length - 1] = "--jdbc-password=";
+            options = new LoadTestOptions(args);
+        }
+        boolean passed;
+        try (FlashSaleVerifier verifier = new FlashSaleVerifier(options, redisHost, redisPort)) {
+            passed = new FlashSaleLoadTest(options, baseUrl, verifier).run();
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private final LoadTestOptions options;
+
+    private final String baseUrl;
+
+    private final FlashSaleVerifier verifier;
+
+    private FlashSaleLoadTest(LoadTestOptions options, String baseUrl, FlashSaleVerifier verifier) {
+        this.options = options;
+        this.baseUrl = baseUrl;
+        this.verifier = verifier;
+    }
+
+    private boolean run() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(options.concurrency());
+        try {
+            //1.创建秒杀券
+            long voucherId = createVoucher();
+            log("秒杀券 id=%d stock=%d", voucherId, options.stock());
+            //2.登录用户
+            List<String> tokens = login(pool);
+            log("登录用户 %d 个", tokens.size());
+            //3.并发下单 每个用户 attempts 次 打乱顺序
+            List<String> requests = new ArrayList<>(tokens.size() * options.attempts());
+            for (int i = 0; i < options.attempts(); i++) {
+                requests.addAll(tokens);
+            }
+            Collections.shuffle(requests);
+            long[] latencies = new long[requests.size()];
+            Map<String, AtomicLong> outcomes = new ConcurrentHashMap<>();
+            List<Future<?>> futures = new ArrayList<>(requests.size());
+            long begin = System.nanoTime();
+            for (int i = 0; i < requests.size(); i++) {
+                int index = i;
+                futures.add(pool.submit(() -> {
+                    long start = System.nanoTime();
+                    Result result = post("/voucher-order/seckill/" + voucherId, requests.get(index), null);
+                    latencies[index] = System.nanoTime() - start;
+                    String outcome = Boolean.TRUE.equals(result.getSuccess()) ? "成功" : result.getErrorMsg();
+                    outcomes.computeIfAbsent(outcome, k -> new AtomicLong()).incrementAndGet();
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - begin;
+            long succeeded = outcomes.getOrDefault("成功", new AtomicLong()).get();
+            //4.等待订单全部落库 且没有未ack的消息
+            long drainBegin = System.nanoTime();
+            long deadline = drainBegin + TimeUnit.SECONDS.toNanos(options.drainTimeoutSeconds());
+            boolean drained = false;
+            while (System.nanoTime() < deadline) {
+                if (verifier.orderCount(voucherId) >= succeeded && verifier.pendingMessages() == 0) {
+                    drained = true;
+                    break;
+                }
+                Thread.sleep(20);
+            }
+            long drainElapsed = System.nanoTime() - drainBegin;
+            //5.报告
+            Arrays.sort(latencies);
+            log("==================== 报告 ====================");
+            log("请求数        %d (用户 %d x %d 次) 并发 %d", requests.size(), tokens.size(), options.attempts(), options.concurrency());
+            log("结果          %s", new TreeMap<>(outcomes));
+            log("耗时          %.3f s", elapsed / 1e9);
+            log("吞吐量        %.1f req/s", requests.size() / (elapsed / 1e9));
+            log("延迟 p50      %.2f ms", percentile(latencies, 0.50));
+            log("延迟 p99      %.2f ms", percentile(latencies, 0.99));
+            log("延迟 p999     %.2f ms", percentile(latencies, 0.999));
+            log("延迟 max      %.2f ms", latencies[latencies.length - 1] / 1e6);
+            log("stream排空    %s", drained ? String.format("%.3f s", drainElapsed / 1e9) : "超时 " + options.drainTimeoutSeconds() + " s");
+            //6.校验
+            long orders = verifier.orderCount(voucherId);
+            long buyers = verifier.buyerCount(voucherId);
+            long dbStock = verifier.dbStock(voucherId);
+            long redisStock = verifier.redisStock(voucherId);
+            log("==================== 校验 ====================");
+            boolean passed = check("没有超卖", orders <= options.stock() && dbStock >= 0 && dbStock == options.stock() - orders,
+                    "库存 %d 订单 %d 数据库剩余 %d", options.stock(), orders, dbStock);
+            passed &= check("一人一单", orders == buyers, "订单 %d 下单用户 %d", orders, buyers);
+            passed &= check("redis库存与数据库一致", redisStock == dbStock, "redis %d 数据库 %d", redisStock, dbStock);
+            passed &= check("成功的请求全部落库", drained && orders == succeeded, "成功 %d 订单 %d", succeeded, orders);
+            return passed;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long createVoucher() {
+        Map<String, Object> voucher = MapUtil.<String, Object>builder()
+                .put("shopId", 1)
+                .put("title", "压测秒杀券")
+                .put("subTitle", "loadtest")
+                .put("rules", "loadtest")
+                .put("payValue", 100)
+                .put("actualValue", 200)
+                .put("type", 1)
+                .put("stock", options.stock())
+                .put("beginTime", LocalDateTime.now().minusMinutes(1).withNano(0).toString())
+                .put("endTime", LocalDateTime.now().plusHours(1).withNano(0).toString())
+                .build();
+        Result result = post("/voucher/seckill", null, JSONUtil.toJsonStr(voucher));
+        if (!Boolean.TRUE.equals(result.getSuccess())) {
+            throw new IllegalStateException("创建秒杀券失败 " + result.getErrorMsg());
+        }
+        return Long.parseLong(result.getData().toString());
+    }
+
+    /**
+     * 并发登录 手机号 138 + 8位序号 验证码从redis中读取
+     */
+    private List<String> login(ExecutorService pool) throws Exception {
+        List<Future<String>> futures = new ArrayList<>(options.users());
+        for (int i = 0; i < options.users(); i++) {
+            String phone = PHONE_PREFIX + String.format("%08d", i);
+            futures.add(pool.submit(() -> {
+                Result sent = post("/user/code?phone=" + phone, null, null);
+                if (!Boolean.TRUE.equals(sent.getSuccess())) {
+                    throw new IllegalStateException("发送验证码失败 " + phone + " " + sent.getErrorMsg());
+                }
+                String code = verifier.redis().get(LOGIN_CODE_KEY + phone);
+                Map<String, Object> form = MapUtil.<String, Object>builder()
+                        .put("phone", phone)
+                        .put("code", code)
+                        .build();
+                Result login = post("/user/login", null, JSONUtil.toJsonStr(form));
+                if (!Boolean.TRUE.equals(login.getSuccess())) {
+                    throw new IllegalStateException("登录失败 " + phone + " " + login.getErrorMsg());
+                }
+                return login.getData().toString();
+            }));
+        }
+        List<String> tokens = new ArrayList<>(futures.size());
+        for (Future<String> future : futures) {
+            tokens.add(future.get());
+        }
+        return tokens;
+    }
+
+    private Result post(String path, String token, String body) {
+        HttpRequest request = HttpRequest.post(baseUrl + path).keepAlive(true);
+        if (token != null) {
+            request.header("authorization", token);
+        }
+        if (body != null) {
+            request.body(body, "application/json");
+        }
+        return JSONUtil.toBean(request.execute().body(), Result.class);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private static boolean check(String name, boolean ok, String format, Object... args) {
+        log("%-4s %s  %s", ok ? "PASS" : "FAIL", name, String.format(format, args));
+        return ok;
+    }
+
+    private static void log(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+}
@@ -0,0 +1,109 @@
+package com.hmdp.loadtest;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.SeckillStockShards;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 直接读取数据库与redis 检查秒杀结束后的状态
+ */
+public class FlashSaleVerifier implements AutoCloseable {
+
+    private final RedisClient redisClient;
+
+    private final StatefulRedisConnection<String, String> redisConnection;
+
+    private final Connection jdbc;
+
+    private final List<String> streamKeys;
+
+    public FlashSaleVerifier(LoadTestOptions options, String redisHost, int redisPort) throws SQLException {
+        this.redisClient = RedisClient.create(RedisURI.create(redisHost, redisPort));
+        this.redisConnection = redisClient.connect();
+        this.jdbc = DriverManager.getConnection(options.jdbcUrl(), options.jdbcUser(), options.jdbcPassword());
+        SeckillProperties.Order order = new SeckillProperties.Order();
+        order.setPartitions(options.partitions());
+        this.streamKeys = order.streamKeys();
+    }
+
+    public RedisCommands<String, String> redis() {
+        return redisConnection.sync();
+    }
+
+    /**
+     * 数据库中该券的订单数
+     */
+    public long orderCount(long voucherId) throws SQLException {
+        return queryLong("SELECT COUNT(*) FROM tb_voucher_order WHERE voucher_id = ?", voucherId);
+    }
+
+    /**
+     * 数据库中该券下过单的用户数
+     */
+    public long buyerCount(long voucherId) throws SQLException {
+        return queryLong("SELECT COUNT(DISTINCT user_id) FROM tb_voucher_order WHERE voucher_id = ?", voucherId);
+    }
+
+    public long dbStock(long voucherId) throws SQLException {
+        return queryLong("SELECT stock FROM tb_seckill_voucher WHERE voucher_id = ?", voucherId);
+    }
+
+    /**
+     * redis中的库存 分片的券为各分片之和
+     */
+    public long redisStock(long voucherId) {
+        RedisCommands<String, String> redis = redis();
+        String stock = redis.get(SECKILL_STOCK_KEY + voucherId);
+        if (stock != null) {
+            return Long.parseLong(stock);
+        }
+        String shards = redis.hget(SECKILL_SHARDS_KEY, String.valueOf(voucherId));
+        long total = 0;
+        for (int i = 0; shards != null && i < Integer.parseInt(shards); i++) {
+            String value = redis.get(SeckillStockShards.stockKey(voucherId, i));
+            total += value == null ? 0 : Long.parseLong(value);
+        }
+        return total;
+    }
+
+    /**
+     * 所有分区中还没有ack的订单消息数
+     */
+    public long pendingMessages() {
+        long pending = 0;
+        for (String streamKey : streamKeys) {
+            if (redis().exists(streamKey) > 0) {
+                pending += redis().xpending(streamKey, SECKILL_ORDER_GROUP).getCount();
+            }
+        }
+        return pending;
+    }
+
+    private long queryLong(String sql, long param) throws SQLException {
+        try (PreparedStatement statement = jdbc.prepareStatement(sql)) {
+            statement.setLong(1, param);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        jdbc.close();
+        redisConnection.close();
+        redisClient.shutdown();
+    }
+}
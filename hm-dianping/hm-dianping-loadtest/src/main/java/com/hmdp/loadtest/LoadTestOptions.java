@@ -0,0 +1,93 @@
+package com.hmdp.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 压测参数 --key=value
+ * --users         参与秒杀的用户数 默认1000
+ * --stock         秒杀券库存 默认100
+ * --concurrency   并发线程数 默认200
+ * --attempts      每个用户的下单次数 大于1时同时验证一人一单 默认1
+ * --base-url      已经启动的应用地址 如 http://127.0.0.1:8081 不指定时在本进程内启动应用(本地redis-server + H2)
+ * --redis         应用使用的redis 默认 127.0.0.1:6379
+ * --jdbc-url      应用使用的数据库 默认 jdbc:mysql://localhost:3306/hmdp?useSSL=false&serverTimezone=UTC
+ * --jdbc-user     默认root
+ * --jdbc-password 默认123456
+ * --partitions    订单stream的分区数 与应用的 hmdp.seckill.order.partitions 一致 默认1
+ * --drain-timeout 等待订单全部落库的最长时间 秒 默认60
+ */
+public class LoadTestOptions {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    public LoadTestOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("参数格式为 --key=value: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            values.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+    }
+
+    public int users() {
+        return getInt("users", 1000);
+    }
+
+    public int stock() {
+        return getInt("stock", 100);
+    }
+
+    public int concurrency() {
+        return getInt("concurrency", 200);
+    }
+
+    public int attempts() {
+        return getInt("attempts", 1);
+    }
+
+    public boolean embedded() {
+        return !values.containsKey("base-url");
+    }
+
+    public String baseUrl() {
+        return values.get("base-url");
+    }
+
+    public String redisHost() {
+        return get("redis", "127.0.0.1:6379").split(":")[0];
+    }
+
+    public int redisPort() {
+        return Integer.parseInt(get("redis", "127.0.0.1:6379").split(":")[1]);
+    }
+
+    public String jdbcUrl() {
+        return get("jdbc-url", "jdbc:mysql://localhost:3306/hmdp?useSSL=false&serverTimezone=UTC");
+    }
+
+    public String jdbcUser() {
+        return get("jdbc-user", "root");
+    }
+
+    public String jdbcPassword() {
+        return get("jdbc-password", "123456");
+    }
+
+    public int partitions() {
+        return getInt("partitions", 1);
+    }
+
+    public int drainTimeoutSeconds() {
+        return getInt("drain-timeout", 60);
+    }
+
+    private String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return values.containsKey(key) ? Integer.parseInt(values.get(key)) : defaultValue;
+    }
+}
@@ -0,0 +1,217 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 缓存相关的配置 对应application.yaml中的 hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * CacheClient本地一级缓存的配置
+     */
+    private Local local = new Local();
+
+    /**
+     * 防缓存穿透的布隆过滤器的配置
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * 缓存未命中时加载数据的配置
+     */
+    private Load load = new Load();
+
+    /**
+     * 缓存值编码的配置
+     */
+    private Codec codec = new Codec();
+
+    /**
+     * 逻辑过期缓存的提前刷新
+     */
+    private EarlyRefresh earlyRefresh = new EarlyRefresh();
+
+    /**
+     * 缓存重建线程池的配置
+     */
+    private Rebuild rebuild = new Rebuild();
+
+    /**
+     * AsyncCacheClient的配置
+     */
+    private Async async = new Async();
+
+    @Data
+    public static class Local {
+
+        /**
+         * 是否开启本地缓存 关闭时每次查询都访问redis
+         */
+        private boolean enabled = false;
+
+        /**
+         * 最多缓存的key数 超出后按访问频率淘汰
+         */
+        private long maximumSize = 10000;
+
+        /**
+         * 写入本地缓存后的存活时间 广播丢失时数据最多旧这么久
+         */
+        private Duration ttl = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Bloom {
+
+        /**
+         * 是否开启布隆过滤器 开启后CacheClient先用它判断id是否存在 一定不存在的直接返回null
+         */
+        private boolean enabled = false;
+
+        /**
+         * 预计的元素个数 与误判率一起决定位图的大小和哈希函数的个数 修改后需要重建
+         */
+        private long expectedInsertions = 1_000_000;
+
+        /**
+         * 误判率
+         */
+        private double fpp = 0.01;
+
+        /**
+         * 定期重建的间隔 删除的数据只有重建后才会从过滤器中去掉
+         */
+        private Duration rebuildInterval = Duration.ofHours(6);
+
+        /**
+         * 重建时游标分页读取主键 每页的行数
+         */
+        private int pageSize = 1000;
+
+        /**
+         * 是否在本地保存一份位图 判断时不访问redis
+         */
+        private boolean localCopy = false;
+
+        /**
+         * 本地位图从redis整体刷新的间隔 其他节点新增的元素通过发布订阅实时同步
+         */
+        private Duration localRefreshInterval = Duration.ofSeconds(60);
+    }
+
+    @Data
+    public static class Load {
+
+        /**
+         * 同一个key的并发未命中是否合并为一次加载
+         */
+        private boolean singleFlight = true;
+
+        /**
+         * 是否用分布式锁保证集群中每个key只有一个节点查询数据库
+         */
+        private boolean distributedLock = true;
+
+        /**
+         * 锁的过期时间 也是没有获取到锁的节点最多等待的时间
+         */
+        private Duration lockTtl = Duration.ofSeconds(10);
+
+        /**
+         * 没有获取到锁时 查询redis的间隔
+         */
+        private Duration lockRetry = Duration.ofMillis(50);
+    }
+
+    @Data
+    public static class Codec {
+
+        /**
+         * 写入的格式 读取时两种格式都支持
+         * 默认json 旧版本的节点只能读json 所有节点都升级到能读二进制的版本后 再改为binary
+         */
+        private Format format = Format.JSON;
+    }
+
+    @Data
+    public static class EarlyRefresh {
+
+        /**
+         * 是否开启 开启后快到期时按概率提前重建 概率与上次重建的耗时有关
+         */
+        private boolean enabled = true;
+
+        /**
+         * 大于1时更早刷新 小于1时更晚刷新
+         */
+        private double beta = 1.0;
+    }
+
+    @Data
+    public static class Rebuild {
+
+        /**
+         * 重建线程数 同时查询数据库的最大连接数
+         */
+        private int threads = 10;
+
+        /**
+         * 排队的重建任务上限
+         */
+        private int queueCapacity = 1000;
+
+        /**
+         * 队列满时的处理
+         */
+        private RejectPolicy rejectPolicy = RejectPolicy.DROP;
+
+        /**
+         * 应用关闭时等待已提交任务的最长时间
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class Async {
+
+        /**
+         * 查询数据库的线程数 异步请求未命中时在这里加载
+         */
+        private int loadThreads = 10;
+
+        /**
+         * 排队的加载任务上限 超出后请求直接失败
+         */
+        private int loadQueueCapacity = 1000;
+    }
+
+    public enum RejectPolicy {
+        /**
+         * 丢弃 调用方继续返回旧值 下次读取时再提交
+         */
+        DROP,
+        /**
+         * 在调用方线程中重建 请求会等待数据库
+         */
+        CALLER_RUNS
+    }
+
+    public enum Format {
+        /**
+         * json 与旧版本兼容
+         */
+        JSON,
+        /**
+         * 有CacheCodec的类型使用二进制 其他类型仍然是json
+         */
+        BINARY
+    }
+}
@@ -4,18 +4,31 @@ package com.hmdp.config;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RedissonConfig {
 
+    //与spring.redis使用同一个redis 默认 127.0.0.1:6379
+    @Value("${spring.redis.host:127.0.0.1}")
+    private String host;
+
+    @Value("${spring.redis.port:6379}")
+    private int port;
+
+    @Value("${spring.redis.password:}")
+    private String password;
+
     @Bean
     public RedissonClient redissonClient(){
         //配置 新建一个配置类
         Config config=new Config();
         //创建 RedissonClient 对象
-        config.useSingleServer().setAddress("redis://127.0.0.1:6379");
+        config.useSingleServer()
+                .setAddress("redis://" + host + ":" + port)
+                .setPassword(password.isEmpty() ? null : password);
         return Redisson.create(config);
 
     }
@@ -0,0 +1,397 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * 秒杀相关的配置 对应application.yaml中的 hmdp.seckill
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 订单消息队列(stream.orders)消费者的配置
+     */
+    private Order order = new Order();
+
+    /**
+     * 热点优惠券分片库存的配置
+     */
+    private Shard shard = new Shard();
+
+    /**
+     * 大库存优惠券本地库存租约的配置
+     */
+    private Lease lease = new Lease();
+
+    /**
+     * 秒杀券redis状态预热的配置
+     */
+    private Preheat preheat = new Preheat();
+
+    /**
+     * 秒杀接口限流的配置
+     */
+    private RateLimit rateLimit = new RateLimit();
+
+    /**
+     * 未支付订单超时取消的配置
+     */
+    private Unpaid unpaid = new Unpaid();
+
+    /**
+     * 订单id号段模式的配置
+     */
+    private IdSegment idSegment = new IdSegment();
+
+    @Data
+    public static class Order {
+
+        /**
+         * 是否开启批量消费 关闭时按原来的方式一条一条的处理
+         */
+        private boolean batchEnabled = true;
+
+        /**
+         * 每批最多读取的消息数 XREADGROUP ... COUNT batchSize
+         */
+        private int batchSize = 100;
+
+        /**
+         * 攒批的最长等待时间 读到第一条消息后 最多再等这么久凑满一批
+         */
+        private Duration batchMaxWait = Duration.ofMillis(200);
+
+        /**
+         * 本实例的消费者名称前缀 为空时使用 主机名-端口 保证每个实例唯一且重启后不变
+         * 每个消费线程的名称为 前缀-线程序号
+         */
+        private String consumerName;
+
+        /**
+         * 本实例的消费线程数
+         */
+        private int workers = 1;
+
+        /**
+         * 本实例的下单通道数 大于1时读取线程只负责读取 按 userId%lanes 把消息分给各个通道并行落库
+         * 同一个用户的订单总在同一个通道中按顺序处理 通道数受数据库连接池大小限制
+         */
+        private int lanes = 1;
+
+        /**
+         * 每个通道最多排队的批数 满了之后读取线程阻塞 不再从stream读取
+         */
+        private int laneQueueSize = 16;
+
+        /**
+         * 订单stream的分区数 为1时只用 stream.orders 大于1时使用 stream.orders:0 ~ stream.orders:{K-1}
+         */
+        private int partitions = 1;
+
+        /**
+         * 分区键 按哪个id取模路由到分区
+         */
+        private PartitionKey partitionKey = PartitionKey.VOUCHER_ID;
+
+        /**
+         * pending-list 恢复任务的配置
+         */
+        private Recovery recovery = new Recovery();
+
+        /**
+         * stream裁剪与统计任务的配置
+         */
+        private Maintenance maintenance = new Maintenance();
+
+        /**
+         * 第partition个分区的stream key
+         */
+        public String streamKey(int partition) {
+            return partitions <= 1 ? SECKILL_ORDER_STREAM_KEY : SECKILL_ORDER_STREAM_KEY + ":" + partition;
+        }
+
+        /**
+         * 订单消息应该写入的分区 与seckill.lua中的路由规则一致
+         */
+        public String streamKeyOf(Long voucherId, Long userId) {
+            if (partitions <= 1) {
+                return SECKILL_ORDER_STREAM_KEY;
+            }
+            long routeId = partitionKey == PartitionKey.USER_ID ? userId : voucherId;
+            return streamKey((int) (routeId % partitions));
+        }
+
+        /**
+         * 所有分区的stream key
+         */
+        public List<String> streamKeys() {
+            List<String> keys = new ArrayList<>(Math.max(partitions, 1));
+            for (int i = 0; i < Math.max(partitions, 1); i++) {
+                keys.add(streamKey(i));
+            }
+            return keys;
+        }
+    }
+
+    @Data
+    public static class Recovery {
+
+        /**
+         * 扫描pending-list的间隔
+         */
+        private Duration interval = Duration.ofSeconds(1);
+
+        /**
+         * 消息空闲超过该时间才会被认领 也是第一次重试的退避时间
+         */
+        private Duration minIdle = Duration.ofSeconds(10);
+
+        /**
+         * 指数退避的上限
+         */
+        private Duration maxBackoff = Duration.ofMinutes(5);
+
+        /**
+         * 投递次数超过该值后移入死信队列 stream.orders.dlq
+         */
+        private int maxDeliveries = 5;
+
+        /**
+         * 每次XPENDING返回的pending消息数 一页满了从最后一条的id继续向后翻页
+         */
+        private int scanCount = 100;
+    }
+
+    @Data
+    public static class Maintenance {
+
+        /**
+         * 裁剪与统计的执行间隔
+         */
+        private Duration interval = Duration.ofSeconds(30);
+
+        /**
+         * 是否裁剪已经确认的消息 XTRIM MINID 需要redis 6.2
+         */
+        private boolean trimEnabled = true;
+
+        /**
+         * 死信队列最多保留的消息数(近似)
+         */
+        private long dlqMaxLen = 10000;
+    }
+
+    @Data
+    public static class Shard {
+
+        /**
+         * 是否开启分片库存
+         */
+        private boolean enabled = false;
+
+        /**
+         * 每个优惠券的库存分成几片
+         */
+        private int count = 4;
+
+        /**
+         * 库存不少于该值的秒杀券才分片 库存少的券用单个key就足够了
+         */
+        private int minStock = 1000;
+
+        /**
+         * 后台再平衡的执行间隔
+         */
+        private Duration rebalanceInterval = Duration.ofSeconds(1);
+
+        /**
+         * 某个分片的库存不高于该值时 把其他分片剩余的库存平均分配过来
+         */
+        private int rebalanceLowWater = 0;
+
+        /**
+         * 本地缓存的分片数与秒杀时间的有效期 过期后重新读取redis
+         * 本节点或其他节点新增秒杀券 预热时(补充库存的通知)立即失效
+         */
+        private Duration localTtl = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class Lease {
+
+        /**
+         * 是否开启库存租约 开启分片的券不使用租约
+         */
+        private boolean enabled = false;
+
+        /**
+         * 库存不少于该值的秒杀券才使用租约
+         */
+        private int minStock = 10000;
+
+        /**
+         * 每次从redis预占的库存数
+         */
+        private int chunkSize = 100;
+
+        /**
+         * 租约的有效期 到期后没卖完的库存还给redis 其他节点可以继续卖
+         */
+        private Duration ttl = Duration.ofSeconds(10);
+
+        /**
+         * 从redis取不到库存后 这段时间内直接返回库存不足 不再访问redis
+         */
+        private Duration emptyRetry = Duration.ofMillis(500);
+
+        /**
+         * 每个券在本地最多记录的已下单用户数 超出后淘汰的用户再次下单时由 SADD 判断
+         */
+        private long localBuyers = 100_000;
+    }
+
+    @Data
+    public static class Preheat {
+
+        /**
+         * 启动时是否重建redis中缺失的秒杀券
+         */
+        private boolean onStartup = true;
+
+        /**
+         * 游标分页读取数据库时每页的行数
+         */
+        private int pageSize = 1000;
+    }
+
+    @Data
+    public static class RateLimit {
+
+        /**
+         * 是否开启限流
+         */
+        private boolean enabled = false;
+
+        /**
+         * 所有秒杀券默认的限流参数
+         */
+        private Limit defaults = new Limit();
+
+        /**
+         * 按优惠券id单独配置的限流参数 没有配置的券使用defaults
+         */
+        private Map<Long, Limit> vouchers = new HashMap<>();
+
+        public Limit limitOf(Long voucherId) {
+            return vouchers.getOrDefault(voucherId, defaults);
+        }
+    }
+
+    @Data
+    public static class Unpaid {
+
+        /**
+         * 是否开启未支付订单超时取消 目前没有支付接口 开启后所有订单都会在超时后被取消
+         */
+        private boolean enabled = false;
+
+        /**
+         * 订单落库后超过该时间仍未支付则取消 释放库存
+         */
+        private Duration timeout = Duration.ofMinutes(15);
+
+        /**
+         * 扫描到期订单的间隔
+         */
+        private Duration pollInterval = Duration.ofSeconds(1);
+
+        /**
+         * 每批认领并取消的订单数 一批订单在一个事务中取消
+         */
+        private int batchSize = 100;
+
+        /**
+         * 认领的有效期 节点认领后在这段时间内没有处理完 其他节点可以重新认领
+         */
+        private Duration claimTtl = Duration.ofSeconds(60);
+    }
+
+    @Data
+    public static class IdSegment {
+
+        /**
+         * 是否开启号段模式 关闭时每个id一次INCR
+         */
+        private boolean enabled = true;
+
+        /**
+         * 每次领取的序列号个数
+         */
+        private long step = 1000;
+
+        /**
+         * 当前号段用到这个比例时 异步领取下一段
+         */
+        private double prefetchThreshold = 0.8;
+    }
+
+    @Data
+    public static class Limit {
+
+        /**
+         * 本节点每秒放行的请求数 0代表不限制
+         */
+        private long localRate = 0;
+
+        /**
+         * 本节点令牌桶的容量 即允许的突发请求数
+         */
+        private long localBurst = 100;
+
+        /**
+         * 所有节点合计每秒放行的请求数 0代表不限制
+         */
+        private long globalRate = 0;
+
+        /**
+         * 全局令牌桶的容量
+         */
+        private long globalBurst = 1000;
+    }
+
+    public enum PartitionKey {
+        /**
+         * 按优惠券id分区 同一张券的订单在同一个分区
+         */
+        VOUCHER_ID("voucherId"),
+        /**
+         * 按用户id分区 同一个用户的订单在同一个分区
+         */
+        USER_ID("userId");
+
+        private final String field;
+
+        PartitionKey(String field) {
+            this.field = field;
+        }
+
+        /**
+         * 传给seckill.lua的分区字段名
+         */
+        public String getField() {
+            return field;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.hmdp.controller;
+
+import com.hmdp.service.IVoucherService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 从数据库重建秒杀券在redis中的状态 用于redis清空或故障切换之后
+ * force会覆盖线上库存并删除已下单用户 只在管理端口(只监听本机)上提供 不对外开放
+ * POST http://127.0.0.1:8082/actuator/seckillpreheat  {"force": true}
+ */
+@Component
+@Endpoint(id = "seckillpreheat")
+public class SeckillPreheatEndpoint {
+
+    @Resource
+    private IVoucherService voucherService;
+
+    /**
+     * @param force 是否覆盖redis中已存在的秒杀券 默认false
+     * @return 重建的秒杀券数量
+     */
+    @WriteOperation
+    public int preheat(@Nullable Boolean force) {
+        return voucherService.preheatSeckillVouchers(Boolean.TRUE.equals(force));
+    }
+}
@@ -10,6 +10,7 @@ import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -32,9 +33,10 @@ public class ShopController {
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
+    public CompletableFuture<Result> queryShopById(@PathVariable("id") Long id) {
 //        return Result.ok(shopService.getById(id));
-        return shopService.queryById(id);
+        // 异步查询 等待redis时释放web线程
+        return shopService.queryByIdAsync(id);
     }
 
     /**
@@ -44,10 +46,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库 并加入布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -68,13 +68,13 @@ public class ShopController {
      * @return 商铺列表
      */
     @GetMapping("/of/type")
-    public Result queryShopByType(
+    public CompletableFuture<Result> queryShopByType(
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x",required = false)Double x,
             @RequestParam(value = "y",required = false)Double y
     ) {
-        return shopService.queryShopByTpye(typeId,current,x,y);
+        return shopService.queryShopByTypeAsync(typeId,current,x,y);
     }
 
     /**
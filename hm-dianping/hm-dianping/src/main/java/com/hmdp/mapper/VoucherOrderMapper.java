@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,18 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 插入订单 违反唯一索引(user_id, voucher_id)或主键冲突时忽略
+     * INSERT IGNORE INTO tb_voucher_order (...) VALUES (...)
+     * @param order 订单
+     * @return 插入的行数 被忽略时为0
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 多行插入订单 冲突的行被忽略 INSERT IGNORE INTO tb_voucher_order (...) VALUES (...),(...)
+     * @param orders 订单集合 不能为空
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -22,6 +24,13 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 新增店铺
+     * @param shop 商铺数据
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
 
     /**
      * 修改数据时 删除缓存
@@ -31,4 +40,16 @@ public interface IShopService extends IService<Shop> {
     Result update(Shop shop);
 
     Result queryShopByTpye(Integer typeId, Integer current, Double x, Double y);
+
+    /**
+     * 异步查询店铺 访问redis时不占用web线程
+     * @param id 店铺id
+     * @return 完成时为店铺详情
+     */
+    CompletableFuture<Result> queryByIdAsync(Long id);
+
+    /**
+     * 异步分页查询店铺 带坐标时 GEO查询与批量读取缓存都是异步的 不带坐标时在加载线程池中查询数据库
+     */
+    CompletableFuture<Result> queryShopByTypeAsync(Integer typeId, Integer current, Double x, Double y);
 }
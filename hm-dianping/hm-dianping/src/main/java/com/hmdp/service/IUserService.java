@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -40,4 +42,11 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    /**
+     * 批量查询用户 经过CacheClient缓存 返回与ids一一对应 不存在的用户对应null
+     * @param ids 用户id
+     * @return 用户信息
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
 }
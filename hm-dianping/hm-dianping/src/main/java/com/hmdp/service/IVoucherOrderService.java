@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,13 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 批量取消未支付的订单 并归还数据库库存
+     * @param orderIds 到期的订单id
+     * @return 实际取消的订单 已支付或不存在的订单不在其中
+     */
+    List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds);
 }
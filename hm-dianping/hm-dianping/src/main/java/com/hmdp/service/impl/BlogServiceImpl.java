@@ -2,19 +2,19 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import jodd.util.StringUtil;
@@ -22,14 +22,19 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -52,6 +57,28 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    /**
+     * 注册笔记的布隆过滤器 按主键游标分页读取全部笔记id
+     */
+    @PostConstruct
+    private void registerBloomFilter() {
+        cacheBloomFilter.register(CACHE_BLOG_KEY, (lastId, pageSize) -> query()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("limit " + pageSize)
+                .list()
+                .stream()
+                .map(Blog::getId)
+                .collect(Collectors.toList()));
+    }
+
     @Override
     public Result queryHotBlog(Integer current) {
                 // 根据用户查询
@@ -60,11 +87,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 查询用户 一页的作者一次批量查询
+        queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -77,7 +102,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.fail("博客不存在");
         }
         //2.查询blog有关的用户
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
         //3. 查询blog是否被点赞
         isBlogLiked(blog);
         return Result.ok(blog);
@@ -120,6 +145,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3.2 保存用户到redis中的sortedset集合中 zadd key value score 以时间戳为分数
             if(isSuccess){
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }
         else {
@@ -129,6 +155,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             if(isSuccess){
                 //4.2 把用户从redis的set集合中移除
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -146,16 +173,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //2.解析出其中的用户id 把数据映射map转为list 将tops的值转为long 并将其collectors收集起来
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
 
-        //查询不按
-
-        //自己拼接字符串
-        String idstr = StrUtil.join(",",ids);
-        // 将user转为userDTo where id in (5,1) ORDER BY FIELD(id,5,1)  这里要自己排序
-        List<UserDTO> users = userService.query()
-                .in("id",id)
-                .last("ORDER BY FIELD(id,"+idstr+")").list()
+        //批量查询缓存 结果与ids的顺序一致 不需要 ORDER BY FIELD
+        List<UserDTO> users = userService.queryUserDTOs(ids)
                 .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         //3.根据id 查询用户
         return Result.ok(users);
@@ -170,6 +191,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess){
             return Result.fail("新增笔记失败");
         }
+        cacheBloomFilter.add(CACHE_BLOG_KEY, blog.getId());
         //2.保存博文 把博主笔记的id 发送给粉丝 select * from tb_follow where follow_user_id = ?
 
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
@@ -216,16 +238,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os=1;
             }
         }
-        //4.根据id查询blog
-        String idStr =StrUtil.join(",",ids);
-
-        List<Blog> blogs=query()
-                .in("id",ids)
-                .last("ORDER BY FIELD(id,"+idStr+")").list();
+        //4.根据id查询blog 批量查询缓存 结果与ids的顺序一致
+        //缓存中的对象可能被本地缓存共享 复制一份再填充作者与点赞信息
+        List<Blog> blogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class, this::listByIds, Blog::getId,
+                        CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .stream()
+                .filter(Objects::nonNull)
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
 
+        //查询 blog相关的用户
+        queryBlogUsers(blogs);
         for (Blog blog : blogs) {
-            //查询 blog相关的用户
-            queryBlogUser(blog);
             //查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -237,10 +261,21 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 批量查询blog的作者
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = userService.queryUserDTOs(userIds);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user != null) {
+                blogs.get(i).setName(user.getNickName());
+                blogs.get(i).setIcon(user.getIcon());
+            }
+        }
     }
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -16,6 +15,7 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -101,9 +101,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         //4.解析id 转为long
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
         //5.查询ids
-        List<UserDTO> users = userService.listByIds(ids)
+        List<UserDTO> users = userService.queryUserDTOs(ids)
                 .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         return Result.ok(users);
     }
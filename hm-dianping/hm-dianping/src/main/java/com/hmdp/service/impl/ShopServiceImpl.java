@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
@@ -11,7 +12,10 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.AsyncCacheClient;
+import com.hmdp.utils.CacheBloomFilter;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
@@ -23,13 +27,14 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -59,6 +64,37 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    /**
+     * 注册店铺的布隆过滤器 按主键游标分页读取全部店铺id
+     */
+    @PostConstruct
+    private void registerBloomFilter() {
+        cacheBloomFilter.register(CACHE_SHOP_KEY, (lastId, pageSize) -> query()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("limit " + pageSize)
+                .list()
+                .stream()
+                .map(Shop::getId)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * 新增店铺 写入数据库后加入布隆过滤器
+     * @param shop 商铺数据
+     * @return 商铺id
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        cacheBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     public Result queryById(Long id) {
 
@@ -90,8 +126,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @param id
      * @return
      */
-    //新建一个线程
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //共享的缓存重建线程池
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private AsyncCacheClient asyncCacheClient;
 
     public Shop queryWithLogicalExpire(Long id) {
         String key = CACHE_SHOP_KEY + id;
@@ -123,18 +163,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         boolean isLock = tryLck(lockKey);
         //6.2 判断是否获取锁成功
         if (isLock) {
-            //6.3 成功 开启独立线程 实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            //6.3 成功 开启独立线程 实现缓存重建 没有提交成功(已有任务或者队列已满)时释放锁
+            boolean submitted = cacheRebuildExecutor.submit(key, () -> {
                 try {
                     //重建 缓存
                     this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     //释放锁
                     unLock(lockKey);
                 }
             });
+            if (!submitted) {
+                unLock(lockKey);
+            }
         }
 
         //6.4 失败 返回过期的店铺信息 直接返回的就是过期的店铺信息
@@ -294,12 +335,57 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //2.删除缓存 同时通知所有节点删除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
 
+    @Override
+    public CompletableFuture<Result> queryByIdAsync(Long id) {
+        return asyncCacheClient.queryWithLogicalExpire(
+                        CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.MINUTES)
+                .thenApply(shop -> shop == null ? Result.fail("店铺不存在") : Result.ok(shop));
+    }
+
+    @Override
+    public CompletableFuture<Result> queryShopByTypeAsync(Integer typeId, Integer current, Double x, Double y) {
+        if (x == null || y == null) {
+            // 不需要 坐标查询 按数据库查询
+            return asyncCacheClient.supplyBlocking(() -> queryShopByTpye(typeId, current, null, null));
+        }
+        //1.计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        //2.异步查询redis 按照距离排序 分页
+        return asyncCacheClient.searchGeo(SHOP_GEO_KEY + typeId, x, y, 5000, end).thenCompose(results -> {
+            if (results.size() <= from) {
+                //没有下一页 结束
+                return CompletableFuture.completedFuture(Result.ok(Collections.emptyList()));
+            }
+            //3.截取 from到end 解析id与距离
+            List<Long> ids = new ArrayList<>(results.size() - from);
+            Map<String, Double> distanceMap = new HashMap<>(results.size());
+            results.stream().skip(from).forEach(result -> {
+                ids.add(Long.valueOf(result.getMember()));
+                distanceMap.put(result.getMember(), result.getDistance());
+            });
+            //4.异步批量查询店铺 复制一份再设置距离
+            return asyncCacheClient.queryBatchWithLogicalExpire(
+                            CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, 20L, TimeUnit.MINUTES)
+                    .thenApply(list -> {
+                        List<Shop> shops = list.stream()
+                                .filter(Objects::nonNull)
+                                .map(shop -> BeanUtil.copyProperties(shop, Shop.class))
+                                .collect(Collectors.toList());
+                        for (Shop shop : shops) {
+                            shop.setDistance(distanceMap.get(shop.getId().toString()));
+                        }
+                        return Result.ok(shops);
+                    });
+        });
+    }
+
     @Override
     public Result queryShopByTpye(Integer typeId, Integer current, Double x, Double y) {
         //1.判断是否需要坐标查询
@@ -345,9 +431,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             distanceMap.put(shopIdStr,distance);
         });
 
-        //5.根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        //5.根据id查询shop 与queryById共用逻辑过期的缓存 一次MGET 未命中的一次查询数据库
+        //缓存中的对象可能被本地缓存共享 复制一份再设置距离
+        List<Shop> shops = cacheClient.queryBatchWithLogicalExpire(
+                        CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, 20L, TimeUnit.MINUTES)
+                .stream()
+                .filter(Objects::nonNull)
+                .map(shop -> BeanUtil.copyProperties(shop, Shop.class))
+                .collect(Collectors.toList());
         for (Shop shop: shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
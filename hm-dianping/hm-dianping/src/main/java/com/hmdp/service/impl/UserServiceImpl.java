@@ -11,6 +11,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -19,6 +21,7 @@ import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
@@ -29,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -50,6 +54,29 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    /**
+     * 注册用户的布隆过滤器 按主键游标分页读取全部用户id
+     */
+    @PostConstruct
+    private void registerBloomFilter() {
+        cacheBloomFilter.register(CACHE_USER_KEY, (lastId, pageSize) -> query()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("limit " + pageSize)
+                .list()
+                .stream()
+                .map(User::getId)
+                .collect(Collectors.toList()));
+    }
+
     /**
      * 发送验证码与保存验证码 保存到session中
      * @param phone
@@ -195,13 +222,24 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    @Override
+    public List<UserDTO> queryUserDTOs(List<Long> ids) {
+        //一次MGET 未命中的一次查询数据库 只缓存UserDTO 不缓存手机号和密码
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone) {
         //1.创建用户
         User user=new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX+RandomUtil.randomNumbers(10));
-        //2.保存用户
+        //2.保存用户 加入布隆过滤器
         save(user);
+        cacheBloomFilter.add(CACHE_USER_KEY, user.getId());
         return user;
     }
 }
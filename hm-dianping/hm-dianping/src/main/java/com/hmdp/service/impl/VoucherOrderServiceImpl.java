@@ -1,7 +1,11 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.config.RedissonConfig;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -10,30 +14,44 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOutMarker;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.UnpaidOrderTimeouts;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.SystemConstants.ORDER_STATUS_CANCELLED;
+import static com.hmdp.utils.SystemConstants.ORDER_STATUS_UNPAID;
 
 /**
  * <p>
@@ -68,27 +86,95 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //lua脚本 即用来使redis的操作具有原子性 由注册中心启动时加载 通过EVALSHA执行 seckill.lua
+    private static final String SECKILL_SCRIPT = "seckill";
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillRateLimiter seckillRateLimiter;
 
-    //定义lua脚本 即用来使redis的操作具有原子性
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
-    //初始化脚本 寻找脚本的文件 设置返回值类型  静态代码块 初始化的时候 直接加载完成
-    static {
-        SECKILL_SCRIPT=new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    //消费线程池 线程数由 hmdp.seckill.order.workers 决定
+    private ExecutorService seckill_order_executor;
+
+    //pending-list 恢复任务
+    private ScheduledExecutorService seckill_recovery_executor;
 
+    //下单通道 userId%W 路由 同一个用户的订单总在同一个通道中按顺序处理 为空时读取线程自己处理
+    private List<BlockingQueue<List<MapRecord<String, Object, Object>>>> seckill_lanes;
 
-    private static final ExecutorService  seckill_order_executor = Executors.newSingleThreadExecutor();
+    //下单通道线程池 每个通道一个线程
+    private ExecutorService seckill_lane_executor;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
 
     //在spring类初始化的时候 新建一个线程池 提交线程任务
 
     @PostConstruct
     private void init(){
-        seckill_order_executor.submit(new VoucherOrderHandler());
+        SeckillProperties.Order config = seckillProperties.getOrder();
+        List<String> streamKeys = config.streamKeys();
+        //1.每个分区都创建消费者组 XGROUP CREATE stream.orders g1 0 MKSTREAM
+        streamKeys.forEach(this::createGroupIfAbsent);
+        //2.本实例的消费者名称 主机名-端口 每个线程再加上序号
+        String consumerPrefix = StrUtil.isNotBlank(config.getConsumerName())
+                ? config.getConsumerName()
+                : NetUtil.getLocalHostName() + "-" + serverPort;
+        //3.下单通道 读取线程只负责读取与分发 由通道线程落库并ack
+        int lanes = config.getLanes();
+        if (lanes > 1) {
+            seckill_lanes = new ArrayList<>(lanes);
+            seckill_lane_executor = Executors.newFixedThreadPool(lanes, ThreadUtil.newNamedThreadFactory("seckill-lane-", false));
+            for (int i = 0; i < lanes; i++) {
+                BlockingQueue<List<MapRecord<String, Object, Object>>> queue = new ArrayBlockingQueue<>(config.getLaneQueueSize());
+                seckill_lanes.add(queue);
+                seckill_lane_executor.submit(new OrderLane(consumerPrefix + "-lane" + i, queue));
+            }
+        }
+        //4.把分区分给各个线程 线程数不超过分区数时 第w个线程处理 p%W==w 的分区 超过时多个线程共同消费一个分区
+        int workers = Math.max(config.getWorkers(), 1);
+        seckill_order_executor = Executors.newFixedThreadPool(workers, ThreadUtil.newNamedThreadFactory("seckill-order-", false));
+        for (int w = 0; w < workers; w++) {
+            List<String> assigned = new ArrayList<>();
+            if (workers <= streamKeys.size()) {
+                for (int p = w; p < streamKeys.size(); p += workers) {
+                    assigned.add(streamKeys.get(p));
+                }
+            } else {
+                assigned.add(streamKeys.get(w % streamKeys.size()));
+            }
+            String consumerName = consumerPrefix + "-" + w;
+            log.info("启动订单消费者 consumer={} streams={}", consumerName, assigned);
+            seckill_order_executor.submit(new VoucherOrderHandler(consumerName, assigned));
+        }
+        //5.pending-list恢复任务 单独的线程 不阻塞消费线程
+        long interval = config.getRecovery().getInterval().toMillis();
+        seckill_recovery_executor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-recovery-", true));
+        seckill_recovery_executor.scheduleWithFixedDelay(
+                new PendingRecoveryTask(consumerPrefix + "-recovery"), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        seckill_order_executor.shutdownNow();
+        seckill_recovery_executor.shutdownNow();
+        if (seckill_lane_executor != null) {
+            //通道中还没处理的消息没有ack 留在pending-list中 重启后由恢复任务处理
+            seckill_lane_executor.shutdownNow();
+        }
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 消费者组已经存在
+            log.debug("消费者组已存在 stream={}", streamKey);
+        }
     }
 
     /**
@@ -98,78 +184,304 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     //线程任务 执行任务的时候 类初始化完成之后
     //异步下单 线程池 线程任务
-    //获取一个单线程池
+    //每个线程是消费者组中一个独立的消费者 负责一个或多个分区
 
     private class  VoucherOrderHandler implements Runnable{
 
+        //消费者 组名g1 消费者名称每个实例每个线程唯一
+        private final Consumer consumer;
 
-        String queueName="stream.orders";
+        //该线程负责的分区
+        private final List<String> streamKeys;
+
+        VoucherOrderHandler(String consumerName, List<String> streamKeys) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+            this.streamKeys = streamKeys;
+        }
 
         @Override
         public void run() {
-            while (true){
+            while (!Thread.currentThread().isInterrupted()){
                 try{
                     //1.获取消息队列中的订单消息 XREADGROUP GROUP g1 c1 count 1 block 2000 stream stream.order >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),//创建分组 组名和
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),//设置读取的个数和要不要阻塞
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())//创建队列的名字 大于号 即读最新消息
-                    );//即count为未知的数据
+                    List<MapRecord<String, Object, Object>> list = readOrders(ReadOffset.lastConsumed());
                     //2. 判断信息获取是否成功 判断list是否为空
                     if(list==null||list.isEmpty()){
                         //2.1 如果获取失败，说明没有消息，继续下一个循环
                         continue;
                     }
-                    //3.解析消息中的订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);//count是1 只有一个
-                    Map<Object, Object> value = record.getValue();//这个获取存进去的key与value
-                    //将获取的map对象转为实体类
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //3. 如果获取成功 可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //4. ack确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    //3. 如果获取成功 可以下单 并ack确认 SACK stream.orders g1 id
+                    dispatch(consumer.getName(), list);
 
                     //创建订单
+                }catch (InterruptedException e){
+                    //应用关闭 分发到通道时被中断 中断标记已被清除 重新设置后退出
+                    Thread.currentThread().interrupt();
+                    break;
                 }catch (Exception e){
+                    if (Thread.currentThread().isInterrupted()) {
+                        //应用关闭 线程池中断了阻塞读取
+                        break;
+                    }
+                    //处理失败的消息留在pending-list中 由恢复任务退避重试 不阻塞新订单
                     log.error("处理订单异常",e);
-                    handlePendingLits();
                 }
             }
         }
 
-        private void handlePendingLits() {
-            while (true){
-                try{
-                    //qu
-                    //1.获取pending-list中的订单消息 XREADGROUP GROUP g1 c1 count 1 stream stream.order 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),//创建分组 组名和
-                            StreamReadOptions.empty().count(1),//设置读取的个数
-                            StreamOffset.create(queueName, ReadOffset.from("0"))//创建队列的名字 大于号 即读最新消息
-                    );//即count为未知的数据
-                    //2. 判断信息获取是否成功 判断list是否为空
-                    if(list==null||list.isEmpty()){
-                        //2.1 如果获取失败，说明pending-list没有消息，即也没有待取的消息 直接跳出循环 去执行上面的
+        /**
+         * 该线程负责的所有分区 一次XREADGROUP同时读多个stream
+         */
+        @SuppressWarnings("unchecked")
+        private StreamOffset<String>[] offsets(ReadOffset offset) {
+            StreamOffset<String>[] offsets = new StreamOffset[streamKeys.size()];
+            for (int i = 0; i < streamKeys.size(); i++) {
+                offsets[i] = StreamOffset.create(streamKeys.get(i), offset);
+            }
+            return offsets;
+        }
+
+        /**
+         * 读取新消息
+         * 单条模式: count 1 block 2000
+         * 批量模式: 先阻塞等到第一条消息 再在batchMaxWait内继续读 直到凑满batchSize条
+         */
+        private List<MapRecord<String, Object, Object>> readOrders(ReadOffset offset) {
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer,//创建分组 组名和
+                    StreamReadOptions.empty().count(readCount()).block(Duration.ofSeconds(2)),//设置读取的个数和要不要阻塞
+                    offsets(offset)//创建队列的名字 大于号 即读最新消息
+            );//即count为未知的数据
+            SeckillProperties.Order config = seckillProperties.getOrder();
+            if (!config.isBatchEnabled() || list == null || list.isEmpty() || list.size() >= config.getBatchSize()) {
+                return list;
+            }
+            //攒批 在最长等待时间内继续读 直到凑满一批
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(list);
+            long deadline = System.currentTimeMillis() + config.getBatchMaxWait().toMillis();
+            long remaining;
+            while (batch.size() < config.getBatchSize()
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                List<MapRecord<String, Object, Object>> more = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(config.getBatchSize() - batch.size()).block(Duration.ofMillis(remaining)),
+                        offsets(offset)
+                );
+                if (more == null || more.isEmpty()) {
+                    break;
+                }
+                batch.addAll(more);
+            }
+            return batch;
+        }
+
+        private int readCount() {
+            SeckillProperties.Order config = seckillProperties.getOrder();
+            return config.isBatchEnabled() ? config.getBatchSize() : 1;
+        }
+    }
+
+    /**
+     * 把读到的消息按 userId%W 分给各个下单通道 通道的队列满了时阻塞读取线程
+     * 没有开启通道时由读取线程直接处理
+     */
+    private void dispatch(String consumerName, List<MapRecord<String, Object, Object>> list) throws InterruptedException {
+        if (seckill_lanes == null) {
+            handleRecords(consumerName, list);
+            return;
+        }
+        int lanes = seckill_lanes.size();
+        Map<Integer, List<MapRecord<String, Object, Object>>> byLane = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : list) {
+            long userId = Long.parseLong(record.getValue().get("userId").toString());
+            byLane.computeIfAbsent((int) (userId % lanes), k -> new ArrayList<>()).add(record);
+        }
+        for (Map.Entry<Integer, List<MapRecord<String, Object, Object>>> entry : byLane.entrySet()) {
+            seckill_lanes.get(entry.getKey()).put(entry.getValue());
+        }
+    }
+
+    /**
+     * 下单通道 一个线程按顺序处理队列中的消息 落库成功后才ack自己的这部分消息
+     * 失败的消息不ack 留在pending-list中由恢复任务重试
+     */
+    private class OrderLane implements Runnable {
+
+        private final String name;
+
+        private final BlockingQueue<List<MapRecord<String, Object, Object>>> queue;
+
+        OrderLane(String name, BlockingQueue<List<MapRecord<String, Object, Object>>> queue) {
+            this.name = name;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    handleRecords(name, queue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted()) {
                         break;
                     }
-                    //3.解析消息中的订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);//count是1 只有一个
-                    Map<Object, Object> value = record.getValue();//这个获取存进去的key与value
-                    //将获取的map对象转为实体类
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //3. 如果获取成功 可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //4. ack确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    log.error("处理订单异常 lane={}", name, e);
+                }
+            }
+        }
+    }
 
-                    //创建订单
-                }catch (Exception e){
-                    //抛出异常继续读pending-list 直到读完异常为止 直接break
-                    log.error("处理pending-list异常",e);
+    /**
+     * 解析消息 创建订单 ack确认
+     * 批量模式下 一批消息在一个事务中落库 然后每个分区一次XACK全部确认
+     */
+    private void handleRecords(String consumerName, List<MapRecord<String, Object, Object>> list) {
+        if (!seckillProperties.getOrder().isBatchEnabled()) {
+            for (MapRecord<String, Object, Object> record : list) {
+                //3.解析消息中的订单消息
+                Map<Object, Object> value = record.getValue();//这个获取存进去的key与value
+                //将获取的map对象转为实体类
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                //3. 如果获取成功 可以下单
+                handleVoucherOrder(voucherOrder);
+                //登记到未支付订单延时队列
+                unpaidOrderTimeouts.enqueue(Collections.singletonList(voucherOrder));
+                //4. ack确认 SACK stream.orders g1 id
+                stringRedisTemplate.opsForStream().acknowledge(record.getStream(), SECKILL_ORDER_GROUP, record.getId());
+            }
+            return;
+        }
+        long begin = System.nanoTime();
+        //1.解析整批消息 按分区收集消息id
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        Map<String, List<RecordId>> idsByStream = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : list) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            idsByStream.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        //2.一个事务 多行插入订单 每个优惠券一次扣减库存 然后登记到未支付订单延时队列
+        proxy.createVoucherOrderBatch(voucherOrders);
+        unpaidOrderTimeouts.enqueue(voucherOrders);
+        //3.每个分区整批ack XACK stream.orders g1 id1 id2 ...
+        idsByStream.forEach((stream, ids) -> stringRedisTemplate.opsForStream()
+                .acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+        //4.统计本批的吞吐量
+        long costMicros = Math.max(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin), 1);
+        log.info("订单批量处理完成 consumer={} size={} cost={}ms throughput={}/s", consumerName,
+                list.size(), costMicros / 1000.0, list.size() * 1_000_000L / costMicros);
+    }
+
+    /**
+     * pending-list 恢复任务 独立于消费线程运行
+     * 1.XPENDING 扫描所有分区中空闲超过退避时间的消息 退避时间随投递次数指数增长
+     * 2.XCLAIM 认领(消费者宕机或处理失败的消息都会被认领) 逐条处理 隔离有问题的消息
+     * 3.投递次数超过上限的消息 写入死信队列 stream.orders.dlq 后ack
+     */
+    private class PendingRecoveryTask implements Runnable {
+
+        private final String consumerName;
+
+        PendingRecoveryTask(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            for (String streamKey : seckillProperties.getOrder().streamKeys()) {
+                try {
+                    recover(streamKey);
+                } catch (Exception e) {
+                    log.error("处理pending-list异常 stream={}", streamKey, e);
+                }
+            }
+        }
+
+        private void recover(String streamKey) {
+            SeckillProperties.Recovery config = seckillProperties.getOrder().getRecovery();
+            //1.XPENDING stream.orders g1 start + count 从上一页最后一条的id向后翻页
+            //  只看最早的一页的话 一页退避中的消息会让后面的消息永远得不到认领
+            String start = "-";
+            while (true) {
+                Range<String> range = "-".equals(start) ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(start));
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(streamKey, SECKILL_ORDER_GROUP, range, config.getScanCount());
+                for (PendingMessage message : pending) {
+                    //包含边界 跳过上一页的最后一条
+                    if (!message.getIdAsString().equals(start)) {
+                        recover(streamKey, config, message);
+                    }
+                }
+                if (pending.size() < config.getScanCount()) {
+                    return;
                 }
+                start = pending.get(pending.size() - 1).getIdAsString();
             }
+        }
 
+        private void recover(String streamKey, SeckillProperties.Recovery config, PendingMessage message) {
+            long deliveries = message.getTotalDeliveryCount();
+            //2.投递次数用完 移入死信队列
+            if (deliveries >= config.getMaxDeliveries()) {
+                claim(streamKey, message, config.getMinIdle()).forEach(this::deadLetter);
+                return;
+            }
+            //3.退避 第n次投递后需要空闲 minIdle*2^(n-1) 才重试
+            Duration backoff = backoff(config, deliveries);
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(backoff) < 0) {
+                return;
+            }
+            for (MapRecord<String, Object, Object> record : claim(streamKey, message, backoff)) {
+                try {
+                    handleRecords(consumerName, Collections.singletonList(record));
+                } catch (Exception e) {
+                    log.error("重试订单失败 stream={} id={} deliveries={}", streamKey, record.getId(), deliveries + 1, e);
+                }
+            }
+        }
+
+        /**
+         * XCLAIM stream.orders g1 consumer min-idle-time id
+         * min-idle-time保证多个节点同时恢复时 只有一个节点认领成功
+         */
+        private List<MapRecord<String, Object, Object>> claim(String streamKey, PendingMessage message, Duration minIdle) {
+            List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(streamKey.getBytes(StandardCharsets.UTF_8),
+                            SECKILL_ORDER_GROUP, consumerName, minIdle, message.getId()));
+            if (records == null || records.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<MapRecord<String, Object, Object>> valid = new ArrayList<>(records.size());
+            for (ByteRecord record : records) {
+                if (record.getValue() == null || record.getValue().isEmpty()) {
+                    //消息内容已经被删除 直接ack
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, record.getId());
+                    continue;
+                }
+                Map<Object, Object> value = new HashMap<>(record.getValue().size());
+                record.getValue().forEach((k, v) -> value.put(
+                        new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+                valid.add(MapRecord.create(streamKey, value).withId(record.getId()));
+            }
+            return valid;
+        }
+
+        private Duration backoff(SeckillProperties.Recovery config, long deliveries) {
+            long factor = 1L << Math.min(Math.max(deliveries - 1, 0), 20);
+            Duration backoff = config.getMinIdle().multipliedBy(factor);
+            return backoff.compareTo(config.getMaxBackoff()) > 0 ? config.getMaxBackoff() : backoff;
+        }
+
+        private void deadLetter(MapRecord<String, Object, Object> record) {
+            Map<String, String> value = new HashMap<>();
+            record.getValue().forEach((k, v) -> value.put(k.toString(), v.toString()));
+            value.put("stream", record.getStream());
+            value.put("recordId", record.getId().getValue());
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_KEY, value);
+            stringRedisTemplate.opsForStream().acknowledge(record.getStream(), SECKILL_ORDER_GROUP, record.getId());
+            log.error("订单消息投递次数超过上限 移入死信队列 stream={} id={} value={}", record.getStream(), record.getId(), value);
         }
     }
     //阻塞队列 如果没有队列 队列获取数据 如果没有就阻塞
@@ -196,42 +508,34 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     /**
      * 创建订单
-     * 加锁保证 并发安全
+     * 不再加锁 一人一单由 tb_voucher_order 的唯一索引(user_id, voucher_id)保证
+     * 重复投递的消息插入时被忽略 不会重复扣库存
      * @param voucherOrder
      */
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
-
-        /**
-         * 这是一个全新的线程 获取不到userId
-         */
-        //1.获取用户
-        Long userId = voucherOrder.getUserId();
-        //2.创建锁对象
-//        SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, "order:" + userId);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //3.获取锁
-//        boolean islock = lock.tryLock(1200);//重试的等待时间 最大等待时间 时间单位
-        boolean islock = lock.tryLock();//重试的等待时间 最大等待时间 时间单位
-        //4.判断是否获取锁成功
-        if(!islock){
-            //获取失败 返回错误或重试
-            log.error("不允许重复下单");
-            return ;
-        }
-        try{
-
-            //锁拿到后 创建订单
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            //释放锁
-            lock.unlock();
-        }
-
-//            }
+        proxy.createVoucherOrder(voucherOrder);
     }
 
+    //注入自身的代理对象 保证异步线程中调用的事务方法生效 @Lazy避免循环依赖
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+
+    @Resource
+    private UnpaidOrderTimeouts unpaidOrderTimeouts;
+
     /**
      * 创建订单
      * 判断有没有购买资格 库存是否充足
@@ -242,24 +546,63 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //0.本地已经标记售罄 直接返回 不再访问redis
+        if (seckillSoldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //售罄标记的版本 脚本执行期间补充了库存的话 库存不足的结果不再标记售罄
+        long soldOutEpoch = seckillSoldOutMarker.epoch(voucherId);
+        //0.1 本地令牌桶限流 超出的请求直接返回繁忙
+        if (!seckillRateLimiter.tryAcquire(voucherId)) {
+            return Result.fail(seckillFailMessage(5));
+        }
         //获取用户的id
         Long userId = UserHolder.getUser().getId();
         //获取订单id
         long orderId = redisIdWorker.nextId("order");
 
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        );
+        //1.执行lua脚本 由脚本按分区键把订单消息写入对应的分区
+        SeckillProperties.Order config = seckillProperties.getOrder();
+        int shards = seckillStockShards.shardCount(voucherId);
+        int r;
+        boolean leased = shards == 0 && seckillStockLeases.isLeased(voucherId);
+        if (shards > 0 || leased) {
+            //1.1 分片库存或者本地租约 订单消息由这里发送
+            r = shards > 0
+                    ? seckillStockShards.seckill(voucherId, userId, shards)
+                    : seckillStockLeases.seckill(voucherId, userId);
+            if (r == 0) {
+                Map<String, String> message = new HashMap<>(4);
+                message.put("userId", userId.toString());
+                message.put("voucherId", voucherId.toString());
+                message.put("id", String.valueOf(orderId));
+                stringRedisTemplate.opsForStream().add(config.streamKeyOf(voucherId, userId), message);
+            }
+        } else {
+            //1.2 全局令牌桶在脚本中与库存判断一起完成
+            long[] globalLimit = seckillRateLimiter.globalLimit(voucherId);
+            Long result = redisScriptRegistry.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    String.valueOf(config.getPartitions()),
+                    config.getPartitionKey().getField(),
+                    String.valueOf(globalLimit[0]),
+                    String.valueOf(globalLimit[1])
+            );
+            r = result.intValue();
+        }
         //2.判断结果是否为0
-        int r = result.intValue();
         if (r!=0){
-            //2.1 不为0 代表没有购买资格
-            return Result.fail(r==1?"库存不足":"不能重复下单");
+            //2.1 不为0 代表没有购买资格 库存不足时标记售罄
+            //租约模式下其他节点的租约中可能还有库存 不广播售罄
+            //分片模式下其他分片可能正在被补充 所有分片之和为0才算售罄
+            if (r == 1 && !leased && (shards == 0 || seckillStockShards.totalStock(voucherId, shards) <= 0)) {
+                seckillSoldOutMarker.markSoldOut(voucherId, soldOutEpoch);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
         //2.2 为0 有购买的资格 保存下单的信息到阻塞队列中
 
@@ -278,13 +621,26 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        orderTasks.add(voucherOrder);
 
 
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         //放到队列中
         //3. 返回订单id
         return Result.ok(orderId);
     }
 
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 3:
+                return "秒杀尚未开始";
+            case 4:
+                return "秒杀已经结束";
+            case 5:
+                return "系统繁忙 请稍后重试";
+            default:
+                return "不能重复下单";
+        }
+    }
+
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        //获取用户的id
@@ -389,59 +745,102 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
     /**
-     * 这里加乐观锁 对数据库操作 并创建订单
-     * 创建订单
+     * 创建订单 一个事务中完成
+     * 1.INSERT IGNORE 插入订单 用户已经下过单(唯一索引冲突)或者同一条消息重复投递(主键冲突)时影响行数为0 直接返回
+     * 2.插入成功才扣减库存 stock=stock-1 where stock>0 扣减失败时抛出异常回滚订单
+     *   消息不会被确认 留在pending-list中由恢复任务重试 超过次数进入死信队列
      *
-     * @param
-     * @return
+     * @param voucherOrder 订单消息
      */
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-
-        //6.1 一人一单 用用户的id查询订单 同
-//        Long userId = UserHolder.getUser().getId();
-
-        Long userId = voucherOrder.getUserId();
-
-        //6.1 查询订单
-        int count = query()
-                .eq("user_id", userId)
-                .eq("voucher_id", voucherOrder)
-                .count();//查询数据库中 订单id与voucherId都存在的订单的数量
-        //6.2 判断是否存在
-        if (count > 0) {
-            log.error("用户购买一次了");
+        //1.插入订单 一人一单
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            log.error("用户购买一次了 userId={} voucherId={}", voucherOrder.getUserId(), voucherOrder.getVoucherId());
             return;
         }
-
-        //5.扣除库存
-
+        //2.扣除库存 乐观锁 stock>0
         boolean success = seckillVoucherService.update()
                 .setSql("stock=stock-1")//set stock=stock-1
-                .eq("voucher_id", voucherOrder)//where id=?
-//                .eq("stock",voucher.getStock())//where and stock =?
+                .eq("voucher_id", voucherOrder.getVoucherId())//where id=?
                 .gt("stock", 0)//and stock >0
                 .update();
-        //乐观锁 当库存与查询的库存一致时才可以修改数据
         if (!success) {
-            //扣除失败
-            log.error("库存不足");
-            return;
+            //扣除失败 回滚插入的订单
+            throw new IllegalStateException("库存不足 voucherId=" + voucherOrder.getVoucherId());
         }
-//        //6.创建订单
-//        VoucherOrder voucherOrder = new VoucherOrder();
-//        //6.1 订单id
-//        long orderId = redisIdWorker.nextId("order");
-//        voucherOrder.setId(orderId);
-//        //6.2 用户id
-//        voucherOrder.setUserId(userId);
-//        //6.3 代金券id
-//        voucherOrder.setVoucherId(voucherId);
+    }
 
-        //创建订单
-        save(voucherOrder);
-//        //返回订单id
-//        return Result.ok(orderId);
+    /**
+     * 批量创建订单 整批在一个事务中完成
+     * 1.按优惠券分组 每组一次多行 INSERT IGNORE 已经下过单的用户与重复投递的消息被唯一索引忽略
+     * 2.按实际插入的行数k 每个优惠券一次 stock=stock-k 的扣减
+     * 3.扣减失败时整批回滚并抛出异常 消息留在pending-list中 由恢复任务逐条重试
+     *
+     * @param voucherOrders 一批订单消息
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            //1.多行插入 返回实际插入的行数
+            int k = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if (k < entry.getValue().size()) {
+                log.error("用户购买一次了 voucherId={} ignored={}", entry.getKey(), entry.getValue().size() - k);
+            }
+            if (k == 0) {
+                continue;
+            }
+            //2.扣减库存 stock=stock-k where voucher_id=? and stock>=k
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock=stock-" + k)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", k)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足 voucherId=" + entry.getKey() + " count=" + k);
+            }
+        }
+    }
 
+    /**
+     * 批量取消未支付的订单 整批在一个事务中完成
+     * 1.SELECT ... FOR UPDATE 锁住仍未支付的订单 避免与支付并发
+     * 2.一次UPDATE把这些订单改为已取消
+     * 3.按优惠券分组 每个优惠券一次 stock=stock+k 归还库存
+     *
+     * @param orderIds 到期的订单id
+     * @return 实际取消的订单
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //1.锁住未支付的订单
+        List<VoucherOrder> unpaid = query()
+                .in("id", orderIds)
+                .eq("status", ORDER_STATUS_UNPAID)
+                .last("FOR UPDATE")
+                .list();
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        //2.取消订单
+        update().set("status", ORDER_STATUS_CANCELLED)
+                .set("update_time", LocalDateTime.now())
+                .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .update();
+        //3.归还库存
+        Map<Long, Long> countByVoucher = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, k) -> seckillVoucherService.update()
+                .setSql("stock=stock+" + k)
+                .eq("voucher_id", voucherId)
+                .update());
+        return unpaid;
     }
 }
@@ -1,20 +1,38 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillSoldOutMarker;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.ORDER_STATUS_CANCELLED;
 
 /**
  * <p>
@@ -24,6 +42,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -33,6 +52,21 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -54,7 +88,183 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //保存秒杀时间到redis中 由秒杀脚本判断秒杀是否开始或结束
+        Map<String, String> meta = toSeckillMeta(seckillVoucher);
+        if (!meta.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucher.getId(), meta);
+        }
+        //保存秒杀库存到redis中 热点券的库存分片保存 大库存的券由各节点租用库存
+        if (seckillStockShards.initStock(voucher.getId(), voucher.getStock()) == 0) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+            seckillStockLeases.register(voucher.getId(), voucher.getStock());
+        }
+        //补充了库存 清除各节点的售罄标记
+        seckillSoldOutMarker.clear(voucher.getId());
+    }
+
+    /**
+     * 启动时预热 只重建redis中缺失的秒杀券
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void preheatOnStartup() {
+        if (seckillProperties.getPreheat().isOnStartup()) {
+            try {
+                preheatSeckillVouchers(false);
+            } catch (Exception e) {
+                log.error("秒杀券预热失败", e);
+            }
+        }
+    }
+
+    /**
+     * 从数据库重建秒杀券在redis中的状态 库存 秒杀时间 已下单的用户
+     * 1.按voucher_id游标分页读取未结束的秒杀券
+     * 2.非强制模式只重建redis中缺失的券(库存key与分片记录都不存在)
+     * 3.按订单id游标分页读取这些券的订单 得到已下单的用户
+     * 4.用pipeline批量写入redis
+     *
+     * @param force 是否覆盖redis中已存在的状态 redis中的库存可能比数据库少(订单还在队列中) 一般不要强制
+     * @return 重建的秒杀券数量
+     */
+    @Override
+    public int preheatSeckillVouchers(boolean force) {
+        long begin = System.currentTimeMillis();
+        int pageSize = seckillProperties.getPreheat().getPageSize();
+        LocalDateTime now = LocalDateTime.now();
+        long lastVoucherId = 0;
+        int rebuilt = 0;
+        while (true) {
+            //1.游标分页 where end_time > now and voucher_id > ? order by voucher_id limit ?
+            List<SeckillVoucher> page = seckillVoucherService.query()
+                    .gt("end_time", now)
+                    .gt("voucher_id", lastVoucherId)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + pageSize)
+                    .list();
+            if (page.isEmpty()) {
+                break;
+            }
+            lastVoucherId = page.get(page.size() - 1).getVoucherId();
+            //2.找出需要重建的券
+            List<SeckillVoucher> missing = force ? page : filterMissing(page);
+            if (!missing.isEmpty()) {
+                rebuild(missing, pageSize);
+                rebuilt += missing.size();
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        log.info("秒杀券预热完成 rebuilt={} force={} cost={}ms", rebuilt, force, System.currentTimeMillis() - begin);
+        return rebuilt;
+    }
+
+    /**
+     * pipeline 一次查询整页券在redis中是否存在 EXISTS stockKey + HEXISTS seckill:shards id
+     */
+    private List<SeckillVoucher> filterMissing(List<SeckillVoucher> page) {
+        List<Object> exists = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (SeckillVoucher voucher : page) {
+                    ops.hasKey(SECKILL_STOCK_KEY + voucher.getVoucherId());
+                    ops.opsForHash().hasKey(SECKILL_SHARDS_KEY, voucher.getVoucherId().toString());
+                }
+                return null;
+            }
+        });
+        List<SeckillVoucher> missing = new ArrayList<>();
+        for (int i = 0; i < page.size(); i++) {
+            if (!Boolean.TRUE.equals(exists.get(2 * i)) && !Boolean.TRUE.equals(exists.get(2 * i + 1))) {
+                missing.add(page.get(i));
+            }
+        }
+        return missing;
+    }
+
+    private void rebuild(List<SeckillVoucher> vouchers, int pageSize) {
+        //1.库存 热点券重新分片 分片库存与其他数据一起在第3步的pipeline中写入
+        Map<Long, Integer> shardsByVoucher = new HashMap<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            int shards = seckillStockShards.shardsFor(voucher.getStock());
+            shardsByVoucher.put(voucher.getVoucherId(), shards);
+            if (shards == 0) {
+                seckillStockLeases.register(voucher.getVoucherId(), voucher.getStock());
+            }
+        }
+        //2.游标分页读取这些券的有效订单 where voucher_id in (...) and status != 4 and id > ? order by id limit ?
+        //  走 idx_voucher_id 索引 二级索引中带有主键id
+        Map<String, List<String>> buyers = new HashMap<>();
+        List<Long> voucherIds = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        long lastOrderId = Long.MIN_VALUE;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id", "voucher_id")
+                    .in("voucher_id", voucherIds)
+                    .ne("status", ORDER_STATUS_CANCELLED)
+                    .gt("id", lastOrderId)
+                    .orderByAsc("id")
+                    .last("limit " + pageSize)
+                    .list();
+            for (VoucherOrder order : orders) {
+                int shards = shardsByVoucher.get(order.getVoucherId());
+                String orderKey = shards > 0
+                        ? SeckillStockShards.orderKey(order.getVoucherId(), SeckillStockShards.homeShard(order.getUserId(), shards))
+                        : SECKILL_ORDER_KEY + order.getVoucherId();
+                buyers.computeIfAbsent(orderKey, k -> new ArrayList<>()).add(order.getUserId().toString());
+            }
+            if (orders.size() < pageSize) {
+                break;
+            }
+            lastOrderId = orders.get(orders.size() - 1).getId();
+        }
+        //3.pipeline写入 库存 秒杀时间 已下单用户
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (SeckillVoucher voucher : vouchers) {
+                    Long id = voucher.getVoucherId();
+                    int shards = shardsByVoucher.get(id);
+                    if (shards == 0) {
+                        ops.opsForValue().set(SECKILL_STOCK_KEY + id, voucher.getStock().toString());
+                        ops.delete(SECKILL_ORDER_KEY + id);
+                    }
+                    if (shards > 0) {
+                        seckillStockShards.writeStock(ops, id, voucher.getStock(), shards);
+                    }
+                    for (int i = 0; i < shards; i++) {
+                        ops.delete(SeckillStockShards.orderKey(id, i));
+                    }
+                    Map<String, String> meta = toSeckillMeta(voucher);
+                    if (!meta.isEmpty()) {
+                        ops.opsForHash().putAll(SECKILL_META_KEY + id, meta);
+                    }
+                }
+                buyers.forEach((orderKey, users) -> ops.opsForSet().add(orderKey, users.toArray(new String[0])));
+                return null;
+            }
+        });
+        //4.库存恢复了 清除售罄标记
+        vouchers.stream()
+                .filter(voucher -> voucher.getStock() > 0)
+                .forEach(voucher -> seckillSoldOutMarker.clear(voucher.getVoucherId()));
+    }
+
+    /**
+     * 秒杀元数据 seckill:meta:{id} 开始与结束时间 单位秒
+     */
+    public static Map<String, String> toSeckillMeta(SeckillVoucher seckillVoucher) {
+        Map<String, String> meta = new HashMap<>(2);
+        if (seckillVoucher.getBeginTime() != null) {
+            meta.put("begin", String.valueOf(seckillVoucher.getBeginTime().atZone(ZoneId.systemDefault()).toEpochSecond()));
+        }
+        if (seckillVoucher.getEndTime() != null) {
+            meta.put("end", String.valueOf(seckillVoucher.getEndTime().atZone(ZoneId.systemDefault()).toEpochSecond()));
+        }
+        return meta;
     }
 }
@@ -0,0 +1,218 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.CacheProperties;
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.GeoArgs;
+import io.lettuce.core.GeoSearch;
+import io.lettuce.core.GeoWithin;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * CacheClient的异步版本 返回CompletableFuture controller直接返回 等待redis时不占用tomcat线程
+ * 读redis使用lettuce的异步命令(独立的一条连接 多路复用) lettuce的io线程中只做解码 不能阻塞
+ * 与CacheClient共用本地缓存 编码 single-flight 分布式锁 提前刷新和重建线程池 语义相同
+ * 命中时在io线程中解码直接返回 只有可能阻塞的部分(未命中加载 批量加载未命中的id 逻辑过期时提交重建)交给有界的加载线程池
+ * 加载线程池队列满时 未命中返回失败的future 重建被丢弃(返回旧值 下次读取再提交)
+ * 注意: 布隆过滤器没有开启 local-copy 时 判断仍然是同步访问redis
+ */
+@Slf4j
+@Component
+public class AsyncCacheClient {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private StatefulConnection<byte[], byte[]> connection;
+
+    private RedisClusterAsyncCommands<byte[], byte[]> commands;
+
+    //查询数据库的线程池
+    private ThreadPoolExecutor loadExecutor;
+
+    @PostConstruct
+    private void init() {
+        //与StringRedisTemplate使用同一个客户端 相同的地址和配置
+        AbstractRedisClient client = ((LettuceConnectionFactory) redisConnectionFactory).getRequiredNativeClient();
+        if (client instanceof RedisClusterClient) {
+            StatefulRedisClusterConnection<byte[], byte[]> cluster = ((RedisClusterClient) client).connect(ByteArrayCodec.INSTANCE);
+            connection = cluster;
+            commands = cluster.async();
+        } else {
+            StatefulRedisConnection<byte[], byte[]> standalone = ((RedisClient) client).connect(ByteArrayCodec.INSTANCE);
+            connection = standalone;
+            commands = standalone.async();
+        }
+        CacheProperties.Async config = cacheProperties.getAsync();
+        loadExecutor = new ThreadPoolExecutor(config.getLoadThreads(), config.getLoadThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getLoadQueueCapacity()),
+                ThreadUtil.newNamedThreadFactory("cache-load-", true),
+                new ThreadPoolExecutor.AbortPolicy());
+        Gauge.builder("cache.async.load.queue", loadExecutor, e -> e.getQueue().size()).register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        loadExecutor.shutdown();
+        connection.close();
+    }
+
+    /**
+     * 同 CacheClient.queryWithPassThrough
+     */
+    public <R,ID> CompletableFuture<R> queryWithPassThrough(
+            String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        //0.先查本地缓存 空值也会缓存
+        CacheClient.LocalEntry local = cacheClient.getLocal(keyPrefix, key);
+        if (local != null) {
+            return CompletableFuture.completedFuture(type.cast(local.value));
+        }
+        //0.1 布隆过滤器判断一定不存在 不再访问redis和数据库
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        //1.异步查询redis
+        return get(key).thenCompose(raw -> {
+            CacheCodecs.CacheValue<R> cached = cacheClient.decodeCached(raw, type);
+            if (cached != null) {
+                //2.存在 直接返回
+                cacheClient.putLocal(keyPrefix, key, cached.getValue(), 0);
+                return CompletableFuture.completedFuture(cached.getValue());
+            }
+            //3.不存在 在加载线程池中查询数据库
+            return supplyBlocking(() -> cacheClient.loadOnMiss(keyPrefix, key, id, type, dbFallback, time, unit));
+        });
+    }
+
+    /**
+     * 同 CacheClient.queryWithLogicalExpire 已过期时提交到重建线程池 不会查询数据库
+     */
+    public <R,ID> CompletableFuture<R> queryWithLogicalExpire(
+            String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        CacheClient.LocalEntry local = cacheClient.getFreshLocal(keyPrefix, key, id, dbFallback, time, unit);
+        if (local != null) {
+            return CompletableFuture.completedFuture(type.cast(local.value));
+        }
+        //0.1 布隆过滤器判断一定不存在 不再访问redis和数据库
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        //1.异步查询redis 在io线程中解码返回 需要重建时才把提交交给加载线程池
+        return get(key).thenApply(
+                raw -> cacheClient.resolveLogical(keyPrefix, key, id, type, raw, dbFallback, time, unit, loadExecutor));
+    }
+
+    /**
+     * 同 CacheClient.queryBatch
+     */
+    public <R,ID> CompletableFuture<List<R>> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(cacheClient.newBatch(keyPrefix, ids, type, dbFallback, idGetter, time, unit, false));
+    }
+
+    /**
+     * 同 CacheClient.queryBatchWithLogicalExpire
+     */
+    public <R,ID> CompletableFuture<List<R>> queryBatchWithLogicalExpire(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(cacheClient.newBatch(keyPrefix, ids, type, dbFallback, idGetter, time, unit, true));
+    }
+
+    private <R,ID> CompletableFuture<List<R>> queryBatch(CacheClient.Batch<R,ID> batch) {
+        //1.本地缓存全部命中
+        if (batch.rawKeys.length == 0) {
+            return CompletableFuture.completedFuture(batch.result);
+        }
+        //2.异步MGET 在io线程中解码 需要重建的key把提交交给加载线程池
+        return commands.mget(batch.rawKeys).toCompletableFuture().thenCompose(keyValues -> {
+            batch.applyValues(keyValues.stream()
+                    .map(kv -> kv.hasValue() ? kv.getValue() : null)
+                    .collect(Collectors.toList()), loadExecutor);
+            if (batch.misses.isEmpty()) {
+                return CompletableFuture.completedFuture(batch.result);
+            }
+            //3.未命中的一次查询数据库 在加载线程池中执行
+            return supplyBlocking(() -> {
+                batch.loadMisses();
+                return batch.result;
+            });
+        });
+    }
+
+    /**
+     * 异步GEOSEARCH 以(x,y)为中心 radius米内 由近到远最多count个 返回成员与距离(米)
+     */
+    public CompletableFuture<List<GeoWithin<String>>> searchGeo(String key, double x, double y, double radius, int count) {
+        return commands.geosearch(key.getBytes(StandardCharsets.UTF_8),
+                        GeoSearch.fromCoordinates(x, y),
+                        GeoSearch.byRadius(radius, GeoArgs.Unit.m),
+                        new GeoArgs().withDistance().withCount(count).asc())
+                .toCompletableFuture()
+                .thenApply(results -> results.stream()
+                        .map(r -> new GeoWithin<>(new String(r.getMember(), StandardCharsets.UTF_8),
+                                r.getDistance(), r.getGeohash(), r.getCoordinates()))
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * 在加载线程池中执行会阻塞的操作(查询数据库) 队列满时返回失败的future
+     */
+    public <T> CompletableFuture<T> supplyBlocking(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, loadExecutor);
+        } catch (RejectedExecutionException e) {
+            //拒绝时supplyAsync直接抛出 转成失败的future 由调用方统一处理
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private CompletableFuture<byte[]> get(String key) {
+        return commands.get(key.getBytes(StandardCharsets.UTF_8)).toCompletableFuture();
+    }
+}
@@ -0,0 +1,369 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 防缓存穿透的布隆过滤器 每种实体(缓存key前缀)一个 位图保存在redis的 bloom:{keyPrefix} 中 所有节点共用
+ * 1.启动时 redis中没有位图的 按主键游标分页读取全表建立
+ * 2.新增数据时 add 写入
+ * 3.定期重建 写入临时key后RENAME 替换 去掉已经删除的数据 多个节点通过锁和 bloom:meta 中的重建时间保证只重建一次
+ *   bloom:meta 中没有重建时间或者位图长度不对时 不论是否到期都重建
+ * 4.可选的本地位图 判断时不访问redis 其他节点的新增通过发布订阅同步 并定期从redis整体刷新
+ * 位图还没有建立时 所有id都按可能存在处理 add不写入 建立完成后补写这段时间新增的数据
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements MessageListener {
+
+    private static final String BLOOM_SCRIPT = "bloom";
+
+    //位图大小与哈希函数个数 由预计元素个数与误判率计算
+    private long bits;
+
+    private int hashes;
+
+    //keyPrefix -> 主键加载函数 (上一页最后的id, 每页行数) -> 下一页的id 升序
+    private final Map<String, BiFunction<Long, Integer, List<Long>>> loaders = new ConcurrentHashMap<>();
+
+    //本地位图 keyPrefix -> 位图 与redis的位序一致 第i位是第i/8个字节的高位起第i%8位
+    private final Map<String, byte[]> localBits = new ConcurrentHashMap<>();
+
+    //上次刷新之后新增的元素 刷新时补写到新的本地位图 避免刷新过程中收到的新增丢失
+    private final Map<String, Queue<long[]>> recentAdds = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService bloomExecutor;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        //m = -n*ln(p)/(ln2)^2  k = m/n*ln2
+        double n = Math.max(config.getExpectedInsertions(), 1);
+        bits = Math.max((long) Math.ceil(-n * Math.log(config.getFpp()) / (Math.log(2) * Math.log(2))), 64);
+        hashes = Math.max((int) Math.round(bits / n * Math.log(2)), 1);
+        if (config.isEnabled() && config.isLocalCopy()) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (bloomExecutor != null) {
+            bloomExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 注册一种实体的过滤器
+     * @param keyPrefix 缓存key前缀 与CacheClient查询时的keyPrefix一致
+     * @param idLoader  (上一页最后的id, 每页行数) -> 下一页的主键 按主键升序
+     */
+    public void register(String keyPrefix, BiFunction<Long, Integer, List<Long>> idLoader) {
+        loaders.put(keyPrefix, idLoader);
+    }
+
+    /**
+     * 启动完成后 建立redis中还没有的过滤器 然后开始定期重建与本地刷新
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        if (!config.isEnabled() || loaders.isEmpty()) {
+            return;
+        }
+        bloomExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("cache-bloom-", true));
+        bloomExecutor.execute(() -> loaders.keySet().forEach(keyPrefix -> rebuildIfDue(keyPrefix, false)));
+        long rebuildInterval = config.getRebuildInterval().toMillis();
+        bloomExecutor.scheduleWithFixedDelay(() -> loaders.keySet().forEach(keyPrefix -> rebuildIfDue(keyPrefix, true)),
+                rebuildInterval, rebuildInterval, TimeUnit.MILLISECONDS);
+        if (config.isLocalCopy()) {
+            long refreshInterval = config.getLocalRefreshInterval().toMillis();
+            bloomExecutor.scheduleWithFixedDelay(() -> loaders.keySet().forEach(this::refreshLocal),
+                    0, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 判断id是否可能存在 返回false时一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        if (!cacheProperties.getBloom().isEnabled() || !loaders.containsKey(keyPrefix)) {
+            return true;
+        }
+        long[] offsets = offsets(id);
+        //1.本地位图
+        byte[] local = localBits.get(keyPrefix);
+        if (local != null) {
+            for (long offset : offsets) {
+                if ((local[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        //2.redis位图 一次脚本调用判断k个位
+        Long result = redisScriptRegistry.execute(BLOOM_SCRIPT, Collections.singletonList(BLOOM_KEY + keyPrefix),
+                toArgs("check", offsets));
+        return result == null || result == 1;
+    }
+
+    /**
+     * 批量判断 返回值与ids一一对应 false的一定不存在
+     * 本地位图在内存中判断 否则一次脚本调用判断全部id
+     */
+    public boolean[] mightContainAll(String keyPrefix, List<?> ids) {
+        boolean[] result = new boolean[ids.size()];
+        Arrays.fill(result, true);
+        if (ids.isEmpty() || !cacheProperties.getBloom().isEnabled() || !loaders.containsKey(keyPrefix)) {
+            return result;
+        }
+        //1.本地位图
+        byte[] local = localBits.get(keyPrefix);
+        if (local != null) {
+            for (int i = 0; i < ids.size(); i++) {
+                for (long offset : offsets(ids.get(i))) {
+                    if ((local[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                        result[i] = false;
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+        //2.redis位图 每个id的k个位依次排列
+        Object[] args = new Object[2 + ids.size() * hashes];
+        args[0] = "checkBatch";
+        args[1] = hashes;
+        for (int i = 0; i < ids.size(); i++) {
+            long[] offsets = offsets(ids.get(i));
+            for (int j = 0; j < hashes; j++) {
+                args[2 + i * hashes + j] = offsets[j];
+            }
+        }
+        List<String> found = redisScriptRegistry.executeForList(BLOOM_SCRIPT, Collections.singletonList(BLOOM_KEY + keyPrefix), args);
+        for (int i = 0; i < ids.size() && i < found.size(); i++) {
+            result[i] = !"0".equals(found.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * 新增数据后写入过滤器 并通知其他节点更新本地位图
+     */
+    public void add(String keyPrefix, Object id) {
+        if (!cacheProperties.getBloom().isEnabled() || !loaders.containsKey(keyPrefix)) {
+            return;
+        }
+        long[] offsets = offsets(id);
+        redisScriptRegistry.execute(BLOOM_SCRIPT, Collections.singletonList(BLOOM_KEY + keyPrefix), toArgs("add", offsets));
+        if (cacheProperties.getBloom().isLocalCopy()) {
+            setLocal(keyPrefix, offsets);
+            stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, keyPrefix + "#" + id);
+        }
+    }
+
+    /**
+     * 重建过滤器 没有完整建立过的总是重建
+     * @param onlyIfDue true: 距离上次重建超过rebuildInterval才重建 false: 已经完整建立时不重建
+     */
+    private void rebuildIfDue(String keyPrefix, boolean onlyIfDue) {
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        try {
+            Object last = stringRedisTemplate.opsForHash().get(BLOOM_META_KEY, keyPrefix);
+            if (last != null && isComplete(keyPrefix)
+                    && (!onlyIfDue || System.currentTimeMillis() - Long.parseLong(last.toString())
+                    < config.getRebuildInterval().toMillis())) {
+                return;
+            }
+            SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, redisScriptRegistry, "bloom:" + keyPrefix);
+            if (!lock.tryLock(TimeUnit.MINUTES.toSeconds(30))) {
+                //其他节点正在重建
+                return;
+            }
+            try {
+                rebuild(keyPrefix, config.getPageSize());
+            } finally {
+                lock.unLock();
+            }
+        } catch (Exception e) {
+            log.error("重建布隆过滤器失败 keyPrefix={}", keyPrefix, e);
+        }
+    }
+
+    /**
+     * 位图是否完整 重建时预先分配了全部的位 长度不一致说明不是重建写入的(数据丢失后被单独SETBIT)或者配置已经修改
+     */
+    private boolean isComplete(String keyPrefix) {
+        Long size = stringRedisTemplate.opsForValue().size(BLOOM_KEY + keyPrefix);
+        return size != null && size == (bits + 7) >>> 3;
+    }
+
+    /**
+     * 1.游标分页读取全部主键 写入临时key
+     * 2.RENAME 原子替换
+     * 3.重建期间新增的数据可能只写进了旧位图 替换后再把大于最后一个主键的数据补写一遍
+     */
+    private void rebuild(String keyPrefix, int pageSize) {
+        long begin = System.currentTimeMillis();
+        String key = BLOOM_KEY + keyPrefix;
+        String tmpKey = key + ":tmp";
+        BiFunction<Long, Integer, List<Long>> loader = loaders.get(keyPrefix);
+        stringRedisTemplate.delete(tmpKey);
+        //1.全量写入临时key 预先设置最后一位 一次分配好位图
+        stringRedisTemplate.opsForValue().setBit(tmpKey, bits - 1, false);
+        long lastId = writeAll(tmpKey, loader, Long.MIN_VALUE, pageSize);
+        //2.替换
+        stringRedisTemplate.rename(tmpKey, key);
+        //3.补写重建期间新增的数据
+        writeAll(key, loader, lastId, pageSize);
+        stringRedisTemplate.opsForHash().put(BLOOM_META_KEY, keyPrefix, String.valueOf(System.currentTimeMillis()));
+        if (cacheProperties.getBloom().isLocalCopy()) {
+            refreshLocal(keyPrefix);
+        }
+        log.info("重建布隆过滤器 keyPrefix={} bits={} hashes={} cost={}ms",
+                keyPrefix, bits, hashes, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 从afterId之后分页读取主键 用pipeline批量SETBIT
+     * @return 最后一个主键 没有数据时返回afterId
+     */
+    private long writeAll(String key, BiFunction<Long, Integer, List<Long>> loader, long afterId, int pageSize) {
+        long lastId = afterId;
+        while (true) {
+            List<Long> ids = loader.apply(lastId, pageSize);
+            if (ids.isEmpty()) {
+                return lastId;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long id : ids) {
+                    for (long offset : offsets(id)) {
+                        conn.setBit(key, offset, true);
+                    }
+                }
+                return null;
+            });
+            lastId = ids.get(ids.size() - 1);
+            if (ids.size() < pageSize) {
+                return lastId;
+            }
+        }
+    }
+
+    /**
+     * 从redis读取整个位图作为本地副本
+     */
+    private void refreshLocal(String keyPrefix) {
+        Queue<long[]> adds = recentAdds.computeIfAbsent(keyPrefix, k -> new ConcurrentLinkedQueue<>());
+        adds.clear();
+        try {
+            byte[] value = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().get((BLOOM_KEY + keyPrefix).getBytes(StandardCharsets.UTF_8)));
+            if (value == null) {
+                //还没有建立 判断时访问redis
+                localBits.remove(keyPrefix);
+                return;
+            }
+            byte[] local = new byte[(int) ((bits + 7) >>> 3)];
+            System.arraycopy(value, 0, local, 0, Math.min(value.length, local.length));
+            localBits.put(keyPrefix, local);
+            //读取位图之后收到的新增 可能写到了旧的本地位图上
+            adds.forEach(offsets -> setLocal(keyPrefix, offsets));
+        } catch (Exception e) {
+            log.warn("刷新本地布隆过滤器失败 keyPrefix={} {}", keyPrefix, e.toString());
+        }
+    }
+
+    /**
+     * 其他节点新增的元素 写入本地位图
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.lastIndexOf('#');
+        if (i > 0) {
+            setLocal(body.substring(0, i), offsets(body.substring(i + 1)));
+        }
+    }
+
+    private void setLocal(String keyPrefix, long[] offsets) {
+        Queue<long[]> adds = recentAdds.get(keyPrefix);
+        if (adds != null) {
+            adds.add(offsets);
+        }
+        byte[] local = localBits.get(keyPrefix);
+        if (local == null) {
+            return;
+        }
+        //新增很少 加锁避免同一个字节的并发写互相覆盖
+        synchronized (local) {
+            for (long offset : offsets) {
+                local[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+    }
+
+    /**
+     * 双重哈希 第i个位 = (h1 + i*h2) mod m  h1 h2 取自murmur3 128位哈希
+     */
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id));
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod(hash[0] + i * hash[1], bits);
+        }
+        return offsets;
+    }
+
+    private static Object[] toArgs(String mode, long[] offsets) {
+        Object[] args = new Object[offsets.length + 1];
+        args[0] = mode;
+        for (int i = 0; i < offsets.length; i++) {
+            args[i + 1] = offsets[i];
+        }
+        return args;
+    }
+}
@@ -1,62 +1,160 @@
 package com.hmdp.utils;
 
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.RandomUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 
+/**
+ * 缓存工具
+ * 开启 hmdp.cache.local 后 在redis之前加一层本地缓存 存放已经反序列化的对象 命中时不访问redis也不解码
+ * 值的编码见CacheCodecs 有CacheCodec的类型写入紧凑的二进制 其他类型以及旧的值使用json
+ * 本地缓存有容量上限与很短的存活时间 通过 delete 删除缓存时 经redis发布订阅通知所有节点删除本地缓存
+ * 每个key前缀的命中 未命中 淘汰次数 通过 /actuator/metrics/cache.local.* 查看
+ * 缓存未命中时 同一个key在本节点只有一个线程加载(single-flight) 在集群中只有持有分布式锁的节点查询数据库
+ * 开启 hmdp.cache.bloom 后 本地缓存未命中时先用布隆过滤器判断 一定不存在的id不访问redis与数据库
+ * 注意: 本地缓存返回的是同一个对象 调用方不能修改
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    private final MeterRegistry meterRegistry;
+
+    private final CacheBloomFilter cacheBloomFilter;
+
+    private final CacheProperties cacheProperties;
+
+    private final RedisScriptRegistry redisScriptRegistry;
+
+    private final CacheCodecs cacheCodecs;
+
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+
+    //正在加载的key 同一个key的并发未命中等待同一个加载结果
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    //本地一级缓存 没有开启时为null
+    private final Cache<String, LocalEntry> localCache;
+
+    //每个key前缀的统计
+    private final Map<String, PrefixStats> stats = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheProperties cacheProperties,
+                       MeterRegistry meterRegistry, RedisMessageListenerContainer redisMessageListenerContainer,
+                       CacheBloomFilter cacheBloomFilter, RedisScriptRegistry redisScriptRegistry,
+                       CacheCodecs cacheCodecs, CacheRebuildExecutor cacheRebuildExecutor){
         this.stringRedisTemplate=stringRedisTemplate;
+        this.meterRegistry=meterRegistry;
+        this.cacheBloomFilter=cacheBloomFilter;
+        this.cacheProperties=cacheProperties;
+        this.redisScriptRegistry=redisScriptRegistry;
+        this.cacheCodecs=cacheCodecs;
+        this.cacheRebuildExecutor=cacheRebuildExecutor;
+        CacheProperties.Local local = cacheProperties.getLocal();
+        if (!local.isEnabled()) {
+            this.localCache = null;
+            return;
+        }
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(local.getMaximumSize())
+                .expireAfterWrite(local.getTtl())
+                .removalListener((String key, LocalEntry entry, RemovalCause cause) -> {
+                    //只统计容量与过期导致的淘汰 主动删除不算
+                    if (entry != null && cause.wasEvicted()) {
+                        stats(entry.prefix).evictions.increment();
+                    }
+                })
+                .build();
+        meterRegistry.gauge("cache.local.size", localCache, Cache::estimatedSize);
+        //订阅失效通知
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
     }
 
     /**
-     * 将Java序列化为json 并存储在key中 并设置TTL过期时间
+     * 将Java对象编码(见CacheCodecs) 并存储在key中 并设置TTL过期时间
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setRaw(key, cacheCodecs.encode(value, 0), Expiration.from(time, unit));
+        invalidateLocal(key);
     }
 
 
     /**
-     * 将Java序列化为json 并存储在key中 并设置逻辑过期时间
+     * 将Java对象编码(见CacheCodecs) 并存储在key中 并设置逻辑过期时间
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
+
+    /**
+     * 同上 并记录这次重建查询数据库的耗时 用于提前刷新
+     * @param rebuildMillis 重建耗时 毫秒
+     */
+    public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit,long rebuildMillis){
+        //设置逻辑过期 写入redis
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+        setRaw(key, cacheCodecs.encode(value, expireAt, rebuildMillis), Expiration.persistent());
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存 数据修改后调用
+     * 删除redis中的key与本地缓存 并广播给所有节点删除各自的本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        if (localCache != null) {
+            invalidateLocal(key);
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
     }
 
 
@@ -67,19 +165,109 @@ public class CacheClient {
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
     Long time,TimeUnit unit) {
         String key = keyPrefix + id;
+        //0.先查本地缓存 空值也会缓存
+        LocalEntry local = getLocal(keyPrefix, key);
+        if (local != null) {
+            return type.cast(local.value);
+        }
+        //0.1 布隆过滤器判断一定不存在 不再访问redis和数据库
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         //1.从redis查询商店缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在 不为空格的话
-        if (StrUtil.isNotBlank(json)) {
+        CacheCodecs.CacheValue<R> cached = getCached(key, type);
+        //2.判断是否存在 空值的value为null
+        if (cached != null) {
             //3.存在 直接返回
-            return JSONUtil.toBean(json, type);
+            putLocal(keyPrefix, key, cached.getValue(), 0);
+            return cached.getValue();
 //            return Result.ok(shop);
         }
-        //这里为空格 不为空的值
-        if (json != null) {
-//            return Result.fail("店铺信息不存在");
-            return null;
+        //4.不存在
+        return loadOnMiss(keyPrefix, key, id, type, dbFallback, time, unit);
+    }
+
+    /**
+     * redis未命中 同一个key并发未命中时只有一个线程加载 其他线程等待它的结果
+     * 会查询数据库 AsyncCacheClient在加载线程池中调用
+     */
+    <R,ID> R loadOnMiss(String keyPrefix, String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        R r = singleFlight(keyPrefix, key, () -> loadWithMutex(key, id, type, dbFallback, time, unit));
+        putLocal(keyPrefix, key, r, 0);
+        return r;
+    }
+
+    /**
+     * 同一个key同时只有一个加载任务 第一个线程加载 后来的线程等待同一个future
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String keyPrefix, String key, Supplier<R> loader) {
+        if (!cacheProperties.getLoad().isSingleFlight()) {
+            return loader.get();
+        }
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            //已经有线程在加载 等待它的结果
+            stats(keyPrefix).coalesced.increment();
+            try {
+                return (R) existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
         }
+        try {
+            R value = loader.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * 缓存未命中时加载 配合分布式锁 集群中每个key只有一个节点查询数据库
+     * 1.获取锁 lock:{key} 成功后再查一次redis 其他节点可能刚刚写入
+     * 2.仍然没有 查询数据库并写入redis
+     * 3.没有获取到锁 每隔lockRetry查一次redis 等待持有锁的节点写入 超过lockTtl仍然没有 直接查询数据库
+     */
+    private <R,ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        CacheProperties.Load config = cacheProperties.getLoad();
+        if (!config.isDistributedLock()) {
+            return loadFromDb(key, id, dbFallback, time, unit);
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, redisScriptRegistry, key);
+        long deadline = System.currentTimeMillis() + config.getLockTtl().toMillis();
+        while (true) {
+            if (lock.tryLock(Math.max(config.getLockTtl().getSeconds(), 1))) {
+                try {
+                    //双重检查
+                    CacheCodecs.CacheValue<R> cached = getCached(key, type);
+                    if (cached != null) {
+                        return cached.getValue();
+                    }
+                    return loadFromDb(key, id, dbFallback, time, unit);
+                } finally {
+                    lock.unLock();
+                }
+            }
+            //其他节点正在加载 稍后再查redis
+            ThreadUtil.sleep(config.getLockRetry().toMillis());
+            CacheCodecs.CacheValue<R> cached = getCached(key, type);
+            if (cached != null) {
+                return cached.getValue();
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                //持有锁的节点太久没有写入 不再等待
+                return loadFromDb(key, id, dbFallback, time, unit);
+            }
+        }
+    }
+
+    private <R,ID> R loadFromDb(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
         //4.不存在 根据id查询数据库
         R r = dbFallback.apply(id);
 
@@ -103,75 +291,437 @@ public class CacheClient {
 
     /**
      * 根据key查询 并反序列为指定类型 利用逻辑过期解决缓存击穿问题
+     * 开启 hmdp.cache.early-refresh 后 快到期时按概率提前在后台重建(XFetch)
+     * 读到的概率随 剩余时间/上次重建耗时 变小而增大 热点key在到期前平滑刷新 很少访问的key直接过期
      */
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     public <R,ID> R queryWithLogicalExpire(
             String keyPrefix,ID id,Class<R> type,Function<ID ,R> dbFallback,Long time,TimeUnit unit) {
         String key = keyPrefix + id;
+        //0.先查本地缓存 逻辑上已经过期的按未命中处理 走下面的重建流程
+        LocalEntry local = getFreshLocal(keyPrefix, key, id, dbFallback, time, unit);
+        if (local != null) {
+            return type.cast(local.value);
+        }
+        //0.1 布隆过滤器判断一定不存在 不再访问redis和数据库
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         //1.从redis查询商店缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在 不为空格的话
-        if (StrUtil.isBlank(json)) {
+        return resolveLogical(keyPrefix, key, id, type, getRaw(key), dbFallback, time, unit, Runnable::run);
+    }
+
+    /**
+     * 本地缓存中没有逻辑过期的值 快到期时可能提前重建 没有或者已过期返回null
+     */
+    <R,ID> LocalEntry getFreshLocal(String keyPrefix, String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        LocalEntry local = getLocal(keyPrefix, key);
+        long now = System.currentTimeMillis();
+        if (local == null || local.expireAt <= now) {
+            return null;
+        }
+        if (shouldRefreshEarly(keyPrefix, local.expireAt, local.rebuildMillis, now)) {
+            rebuildAsync(key, id, dbFallback, time, unit);
+        }
+        return local;
+    }
+
+    /**
+     * 处理从redis读到的逻辑过期的值 已过期时提交重建并返回旧值
+     * @param submitter 在哪里提交重建任务 重建线程池队列满且为 caller-runs 时会在这里执行重建
+     *                  lettuce的io线程中调用时要传加载线程池 同步调用传 Runnable::run
+     */
+    <R,ID> R resolveLogical(String keyPrefix, String key, ID id, Class<R> type, byte[] raw,
+                            Function<ID,R> dbFallback, Long time, TimeUnit unit, Executor submitter) {
+        long now = System.currentTimeMillis();
+        //2.判断是否存在 不为空值的话
+        if (raw == null || raw.length == 0) {
             //3.不存在 直接返回
             return null;
         }
 
-        //4. 命中 把json反序列化 转为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        //(JSONObject) redisData.getData() 这里获得的实际上是json数据
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5. 判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //5.1 未过期 直接返回店铺信息
-            return r;
+        //4. 命中 解码为对象 二进制格式只解析一次 过期时间在固定长度的头部
+        CacheCodecs.CacheValue<R> cached = cacheCodecs.decode(raw, type, true);
+        R r = null;
+        if (cached != null) {
+            r = cached.getValue();
+            //5. 判断是否过期
+            if (cached.getExpireAt() > now) {
+                //5.1 未过期 直接返回店铺信息 放入本地缓存 快到期时可能提前重建
+                putLocal(keyPrefix, key, r, cached.getExpireAt(), cached.getRebuildMillis());
+                if (shouldRefreshEarly(keyPrefix, cached.getExpireAt(), cached.getRebuildMillis(), now)) {
+                    rebuildAsync(key, id, dbFallback, time, unit, submitter);
+                }
+                return r;
+            }
         }
 
-        //5.2 已过期 需要缓存重建
+        //5.2 已过期或者结构版本已经变化 需要缓存重建
 
         //6. 缓存重建
 
-        //6.1 获得互斥锁
-        String lockKey= LOCK_SHOP_KEY+id;
-        boolean isLock = tryLck(lockKey);
-        //6.2 判断是否获取锁成功
-        if(isLock){
-            //6.3 成功 开启独立线程 实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try{
-                    //重建缓存
-
-                    //查询数据库
-                    R r1=dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
+        rebuildAsync(key, id, dbFallback, time, unit, submitter);
+        //6.4 失败 返回过期的店铺信息 直接返回的就是过期的店铺信息
+        return r;
+    }
+
+    /**
+     * XFetch: now - rebuildMillis * beta * ln(rand) >= expireAt 时提前重建
+     * 没有记录重建耗时的值(旧的值 json格式) 只在真正过期后重建
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, long expireAt, long rebuildMillis, long now) {
+        CacheProperties.EarlyRefresh config = cacheProperties.getEarlyRefresh();
+        if (!config.isEnabled() || rebuildMillis <= 0) {
+            return false;
+        }
+        if (!xfetch(expireAt, rebuildMillis, config.getBeta(), now, ThreadLocalRandom.current().nextDouble())) {
+            return false;
+        }
+        stats(keyPrefix).earlyRefreshes.increment();
+        return true;
+    }
+
+    /**
+     * XFetch的判断 rand在[0,1)之间 剩余时间为t时提前重建的概率是 exp(-t / (rebuildMillis * beta))
+     */
+    static boolean xfetch(long expireAt, long rebuildMillis, double beta, long now, double rand) {
+        //1 - rand 在 (0,1] 之间 ln为负数
+        double gap = -rebuildMillis * beta * Math.log(1 - rand);
+        return now + gap >= expireAt;
+    }
+
+    /**
+     * 提交到共享的重建线程池 本节点同一个key只有一个任务 不访问redis
+     * 任务中再获取互斥锁 lock:{key} 集群中同一个key只有一个节点重建 与未命中时加载用同一把锁
+     */
+    private <R,ID> void rebuildAsync(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        rebuildAsync(key, id, dbFallback, time, unit, Runnable::run);
+    }
+
+    /**
+     * 通过submitter提交重建任务 submitter拒绝时丢弃 下次读取再提交
+     */
+    private <R,ID> void rebuildAsync(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit, Executor submitter) {
+        try {
+            submitter.execute(() -> submitRebuild(key, id, dbFallback, time, unit));
+        } catch (RejectedExecutionException e) {
+            log.debug("提交缓存重建被拒绝 key={}", key);
+        }
+    }
+
+    private <R,ID> void submitRebuild(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        cacheRebuildExecutor.submit(key, () -> {
+            //6.1 获得互斥锁 锁名由缓存key决定 不同前缀的相同id互不影响
+            SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, redisScriptRegistry, key);
+            boolean isLock = lock.tryLock(Math.max(cacheProperties.getLoad().getLockTtl().getSeconds(), 1));
+            //6.2 判断是否获取锁成功 失败说明其他节点正在重建
+            if(!isLock){
+                return;
+            }
+            //6.3 成功 实现缓存重建
+            try{
+                //查询数据库 记录耗时
+                long begin = System.currentTimeMillis();
+                R r1=dbFallback.apply(id);
+                //写入redis
+                this.setWithLogicalExpire(key,r1,time,unit,System.currentTimeMillis() - begin);
+            }
+            finally {
+                //释放锁 只释放自己持有的
+                lock.unLock();
+            }
+        });
+    }
+
+    /**
+     * 批量查询 用缓存空值解决缓存穿透 返回的列表与ids一一对应 不存在的id对应null
+     * 1.查本地缓存 2.其余的key一次MGET 3.未命中的id一次批量查询数据库 4.用管道写回redis
+     * 一页数据最多3次网络往返(开启布隆过滤器且没有本地位图时 多一次脚本调用判断全部id)
+     * @param dbFallback 按id集合批量查询数据库 例如 IService::listByIds
+     * @param idGetter 取查询结果的id 用来与ids对应
+     */
+    public <R,ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, idGetter, time, unit, false);
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存 与queryWithLogicalExpire共用key
+     * 已过期的返回旧值并异步重建 redis中没有的id查询数据库后按逻辑过期写回
+     */
+    public <R,ID> List<R> queryBatchWithLogicalExpire(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        return queryBatch(keyPrefix, ids, type, dbFallback, idGetter, time, unit, true);
+    }
+
+    private <R,ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+            Function<R, ID> idGetter, Long time, TimeUnit unit, boolean logical) {
+        //1.先查本地缓存
+        Batch<R,ID> batch = newBatch(keyPrefix, ids, type, dbFallback, idGetter, time, unit, logical);
+        if (batch.rawKeys.length == 0) {
+            return batch.result;
+        }
+        //2.一次MGET
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                connection.stringCommands().mGet(batch.rawKeys));
+        batch.applyValues(values, Runnable::run);
+        //3.未命中的一次查询数据库
+        if (!batch.misses.isEmpty()) {
+            batch.loadMisses();
+        }
+        return batch.result;
+    }
+
+    <R,ID> Batch<R,ID> newBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+                                Function<R, ID> idGetter, Long time, TimeUnit unit, boolean logical) {
+        return new Batch<>(keyPrefix, ids, type, dbFallback, idGetter, time, unit, logical);
+    }
+
+    /**
+     * 一次批量查询的状态 分为三步 AsyncCacheClient异步执行MGET 在加载线程池中执行loadMisses
+     */
+    class Batch<R,ID> {
+        private final String keyPrefix;
+        private final List<ID> ids;
+        private final Class<R> type;
+        private final Function<Collection<ID>, List<R>> dbFallback;
+        private final Function<R, ID> idGetter;
+        private final Long time;
+        private final TimeUnit unit;
+        private final boolean logical;
+        //重建单个key时使用
+        private final Function<ID, R> single;
+        //与ids一一对应
+        final List<R> result;
+        //需要查redis的位置
+        private final List<Integer> remote;
+        //需要MGET的key 与remote一一对应
+        final byte[][] rawKeys;
+        //未命中的id -> 在结果中的位置 同一个id可能出现多次
+        final Map<ID, List<Integer>> misses = new LinkedHashMap<>();
+
+        /**
+         * 查本地缓存 记下需要查redis的位置
+         */
+        Batch(String keyPrefix, List<ID> ids, Class<R> type, Function<Collection<ID>, List<R>> dbFallback,
+              Function<R, ID> idGetter, Long time, TimeUnit unit, boolean logical) {
+            this.keyPrefix = keyPrefix;
+            this.ids = ids;
+            this.type = type;
+            this.dbFallback = dbFallback;
+            this.idGetter = idGetter;
+            this.time = time;
+            this.unit = unit;
+            this.logical = logical;
+            this.single = id -> firstOrNull(dbFallback.apply(Collections.singletonList(id)));
+            this.result = new ArrayList<>(Collections.nCopies(ids.size(), null));
+            this.remote = new ArrayList<>(ids.size());
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < ids.size(); i++) {
+                String key = keyPrefix + ids.get(i);
+                LocalEntry local = getLocal(keyPrefix, key);
+                if (local != null && (!logical || local.expireAt > now)) {
+                    result.set(i, type.cast(local.value));
+                    if (logical && shouldRefreshEarly(keyPrefix, local.expireAt, local.rebuildMillis, now)) {
+                        rebuildAsync(key, ids.get(i), single, time, unit);
+                    }
+                } else {
+                    remote.add(i);
+                }
+            }
+            //布隆过滤器判断一定不存在的id 不访问redis与数据库 结果为null
+            if (!remote.isEmpty()) {
+                List<ID> remoteIds = new ArrayList<>(remote.size());
+                remote.forEach(i -> remoteIds.add(ids.get(i)));
+                boolean[] exists = cacheBloomFilter.mightContainAll(keyPrefix, remoteIds);
+                int kept = 0;
+                for (int j = 0; j < remote.size(); j++) {
+                    if (exists[j]) {
+                        remote.set(kept++, remote.get(j));
+                    }
+                }
+                remote.subList(kept, remote.size()).clear();
+            }
+            this.rawKeys = new byte[remote.size()][];
+            for (int j = 0; j < remote.size(); j++) {
+                rawKeys[j] = (keyPrefix + ids.get(remote.get(j))).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        /**
+         * 处理MGET的结果 需要重建的key通过submitter提交 见 resolveLogical
+         */
+        void applyValues(List<byte[]> values, Executor submitter) {
+            long now = System.currentTimeMillis();
+            for (int j = 0; j < remote.size(); j++) {
+                int i = remote.get(j);
+                ID id = ids.get(i);
+                String key = keyPrefix + id;
+                byte[] raw = values == null ? null : values.get(j);
+                if (raw != null && raw.length == 0) {
+                    //空值
+                    putLocal(keyPrefix, key, null, 0);
+                    continue;
+                }
+                CacheCodecs.CacheValue<R> cached = raw == null ? null : cacheCodecs.decode(raw, type, logical);
+                if (cached == null) {
+                    misses.computeIfAbsent(id, k -> new ArrayList<>(1)).add(i);
+                    continue;
                 }
-                finally {
-                    //释放锁
-                    unLock(lockKey);
+                result.set(i, cached.getValue());
+                if (!logical) {
+                    putLocal(keyPrefix, key, cached.getValue(), 0);
+                } else if (cached.getExpireAt() > now) {
+                    putLocal(keyPrefix, key, cached.getValue(), cached.getExpireAt(), cached.getRebuildMillis());
+                    if (shouldRefreshEarly(keyPrefix, cached.getExpireAt(), cached.getRebuildMillis(), now)) {
+                        rebuildAsync(key, id, single, time, unit, submitter);
+                    }
+                } else {
+                    //已过期 返回旧值 单独重建
+                    rebuildAsync(key, id, single, time, unit, submitter);
                 }
+            }
+        }
+
+        /**
+         * 未命中的id一次查询数据库 用管道写回redis 数据库中也没有的写入空值
+         */
+        void loadMisses() {
+            Map<ID, R> loaded = new HashMap<>(misses.size() * 2);
+            long begin = System.currentTimeMillis();
+            for (R r : dbFallback.apply(misses.keySet())) {
+                loaded.put(idGetter.apply(r), r);
+            }
+            //整批的耗时作为每个key的重建耗时
+            long rebuildMillis = logical ? System.currentTimeMillis() - begin : 0;
+            long expireAt = logical ? System.currentTimeMillis() + unit.toMillis(time) : 0;
+            Expiration expiration = logical ? Expiration.persistent() : Expiration.from(time, unit);
+            Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : misses.keySet()) {
+                    R r = loaded.get(id);
+                    byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    if (r == null) {
+                        connection.stringCommands().set(rawKey, new byte[0], nullExpiration, RedisStringCommands.SetOption.upsert());
+                    } else {
+                        connection.stringCommands().set(rawKey, cacheCodecs.encode(r, expireAt, rebuildMillis), expiration, RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            misses.forEach((id, positions) -> {
+                R r = loaded.get(id);
+                positions.forEach(i -> result.set(i, r));
+                putLocal(keyPrefix, keyPrefix + id, r, expireAt, rebuildMillis);
             });
         }
-        //6.4 失败 返回过期的店铺信息 直接返回的就是过期的店铺信息
-        return r;
     }
 
-    private boolean tryLck(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,
-                "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    private static <R> R firstOrNull(List<R> list) {
+        return list == null || list.isEmpty() ? null : list.get(0);
     }
 
+    /**
+     * 读取并解码 key不存在或者无法解码(结构版本已经变化)时返回null 空值返回value为null的CacheValue
+     */
+    private <R> CacheCodecs.CacheValue<R> getCached(String key, Class<R> type) {
+        return decodeCached(getRaw(key), type);
+    }
+
+    <R> CacheCodecs.CacheValue<R> decodeCached(byte[] raw, Class<R> type) {
+        if (raw == null) {
+            return null;
+        }
+        if (raw.length == 0) {
+            return new CacheCodecs.CacheValue<>(null, 0, 0);
+        }
+        return cacheCodecs.decode(raw, type, false);
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void setRaw(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(key.getBytes(StandardCharsets.UTF_8), value, expiration,
+                        RedisStringCommands.SetOption.upsert()));
+    }
 
     /**
-     * 释放锁
-     *
-     * @param key
+     * 收到其他节点(包括自己)的失效通知 删除本地缓存
      */
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8));
     }
 
+    LocalEntry getLocal(String keyPrefix, String key) {
+        if (localCache == null) {
+            return null;
+        }
+        LocalEntry entry = localCache.getIfPresent(key);
+        PrefixStats prefixStats = stats(keyPrefix);
+        (entry == null ? prefixStats.misses : prefixStats.hits).increment();
+        return entry;
+    }
+
+    void putLocal(String keyPrefix, String key, Object value, long expireAt) {
+        putLocal(keyPrefix, key, value, expireAt, 0);
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value, long expireAt, long rebuildMillis) {
+        if (localCache != null) {
+            localCache.put(key, new LocalEntry(keyPrefix, value, expireAt, rebuildMillis));
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+    }
+
+    private PrefixStats stats(String keyPrefix) {
+        PrefixStats prefixStats = stats.get(keyPrefix);
+        return prefixStats != null ? prefixStats : stats.computeIfAbsent(keyPrefix, PrefixStats::new);
+    }
+
+    /**
+     * 本地缓存的值 已经反序列化的对象 value为null代表缓存的空值
+     */
+    static class LocalEntry {
+        private final String prefix;
+        final Object value;
+        //逻辑过期时间 毫秒 只有queryWithLogicalExpire写入的值才有 其他为0
+        private final long expireAt;
+        //上次重建的耗时 毫秒 用于提前刷新
+        private final long rebuildMillis;
+
+        LocalEntry(String prefix, Object value, long expireAt, long rebuildMillis) {
+            this.prefix = prefix;
+            this.value = value;
+            this.expireAt = expireAt;
+            this.rebuildMillis = rebuildMillis;
+        }
+    }
+
+    private class PrefixStats {
+        private final Counter hits;
+        private final Counter misses;
+        private final Counter evictions;
+        private final Counter coalesced;
+        private final Counter earlyRefreshes;
+
+        PrefixStats(String keyPrefix) {
+            this.hits = Counter.builder("cache.local.requests").tag("prefix", keyPrefix).tag("result", "hit").register(meterRegistry);
+            this.misses = Counter.builder("cache.local.requests").tag("prefix", keyPrefix).tag("result", "miss").register(meterRegistry);
+            this.evictions = Counter.builder("cache.local.evictions").tag("prefix", keyPrefix).register(meterRegistry);
+            this.coalesced = Counter.builder("cache.load.coalesced").tag("prefix", keyPrefix).register(meterRegistry);
+            this.earlyRefreshes = Counter.builder("cache.refresh.early").tag("prefix", keyPrefix).register(meterRegistry);
+        }
+    }
 }
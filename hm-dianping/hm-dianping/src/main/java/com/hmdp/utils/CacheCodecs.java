@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CacheClient缓存值的编码与解码
+ * 二进制格式: 格式字节(0x01) + 结构版本(1字节) + 逻辑过期时间(8字节 毫秒 0代表没有) + CacheCodec编码的对象
+ * 记录了重建耗时的值格式字节为0x02 逻辑过期时间之后多4字节的重建耗时(毫秒)
+ * json格式与原来相同: 对象的json 逻辑过期的值是RedisData的json json不会以控制字符开头 读取时按第一个字节区分
+ * 两种格式可以同时存在 hmdp.cache.codec.format 只决定写入的格式 旧的key过期或重建后换成新格式
+ */
+@Slf4j
+@Component
+public class CacheCodecs {
+
+    public static final byte FORMAT_BINARY = 0x01;
+
+    public static final byte FORMAT_BINARY_REBUILD = 0x02;
+
+    //格式字节 + 版本 + 过期时间
+    private static final int HEADER_LENGTH = 10;
+
+    //再加上重建耗时
+    private static final int REBUILD_HEADER_LENGTH = 14;
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private final Map<Class<?>, CacheCodec<?>> codecs = new ConcurrentHashMap<>();
+
+    private final CacheProperties cacheProperties;
+
+    public CacheCodecs(List<CacheCodec<?>> codecs, CacheProperties cacheProperties) {
+        this.cacheProperties = cacheProperties;
+        for (CacheCodec<?> codec : codecs) {
+            this.codecs.put(codec.type(), codec);
+        }
+    }
+
+    /**
+     * 编码 配置为二进制并且类型有CacheCodec时使用二进制 否则使用json
+     * @param expireAt 逻辑过期时间 毫秒 0代表没有逻辑过期
+     */
+    public byte[] encode(Object value, long expireAt) {
+        return encode(value, expireAt, 0);
+    }
+
+    /**
+     * @param rebuildMillis 重建耗时 毫秒 大于0时写入 用于提前刷新
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object value, long expireAt, long rebuildMillis) {
+        CacheCodec<Object> codec = cacheProperties.getCodec().getFormat() == CacheProperties.Format.BINARY
+                ? (CacheCodec<Object>) codecs.get(value.getClass()) : null;
+        if (codec == null) {
+            return encodeJson(value, expireAt, rebuildMillis);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(rebuildMillis > 0 ? FORMAT_BINARY_REBUILD : FORMAT_BINARY);
+            out.writeByte(codec.version());
+            out.writeLong(expireAt);
+            if (rebuildMillis > 0) {
+                out.writeInt((int) Math.min(rebuildMillis, Integer.MAX_VALUE));
+            }
+            codec.encode(value, out);
+        } catch (IOException e) {
+            //写入内存不会有io异常
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] encodeJson(Object value, long expireAt, long rebuildMillis) {
+        if (expireAt == 0) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZONE));
+        if (rebuildMillis > 0) {
+            redisData.setRebuildMillis(rebuildMillis);
+        }
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解码 不能是空值
+     * @param logical json格式时 值是否为RedisData
+     * @return 结构版本不一致或者无法解析时返回null 调用方按未命中处理
+     */
+    public <R> CacheValue<R> decode(byte[] raw, Class<R> type, boolean logical) {
+        byte format = raw[0];
+        if (format != FORMAT_BINARY && format != FORMAT_BINARY_REBUILD) {
+            //不认识的格式(更新的版本写入的) 按未命中处理
+            return format < ' ' ? null : decodeJson(raw, type, logical);
+        }
+        @SuppressWarnings("unchecked")
+        CacheCodec<R> codec = (CacheCodec<R>) codecs.get(type);
+        int headerLength = format == FORMAT_BINARY_REBUILD ? REBUILD_HEADER_LENGTH : HEADER_LENGTH;
+        if (codec == null || raw.length < headerLength || raw[1] != codec.version()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw, 2, raw.length - 2));
+        try {
+            long expireAt = in.readLong();
+            long rebuildMillis = format == FORMAT_BINARY_REBUILD ? in.readInt() : 0;
+            return new CacheValue<>(codec.decode(in), expireAt, rebuildMillis);
+        } catch (IOException e) {
+            log.warn("缓存值无法解码 type={} {}", type.getSimpleName(), e.toString());
+            return null;
+        }
+    }
+
+    private <R> CacheValue<R> decodeJson(byte[] raw, Class<R> type, boolean logical) {
+        String json = new String(raw, StandardCharsets.UTF_8);
+        if (!logical) {
+            return new CacheValue<>(JSONUtil.toBean(json, type), 0, 0);
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        //(JSONObject) redisData.getData() 这里获得的实际上是json数据
+        R value = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        long rebuildMillis = redisData.getRebuildMillis() == null ? 0 : redisData.getRebuildMillis();
+        return new CacheValue<>(value, redisData.getExpireTime().atZone(ZONE).toInstant().toEpochMilli(), rebuildMillis);
+    }
+
+    /**
+     * 解码后的缓存值
+     */
+    public static class CacheValue<R> {
+        private final R value;
+        //逻辑过期时间 毫秒 0代表没有
+        private final long expireAt;
+        //上次重建的耗时 毫秒 0代表没有记录
+        private final long rebuildMillis;
+
+        CacheValue(R value, long expireAt, long rebuildMillis) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.rebuildMillis = rebuildMillis;
+        }
+
+        public R getValue() {
+            return value;
+        }
+
+        public long getExpireAt() {
+            return expireAt;
+        }
+
+        public long getRebuildMillis() {
+            return rebuildMillis;
+        }
+    }
+}
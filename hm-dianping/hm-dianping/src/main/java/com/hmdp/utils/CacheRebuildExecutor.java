@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存重建的共享线程池
+ * 1.有界队列 数据库变慢时不会无限堆积
+ * 2.同一个key同时只有一个重建任务(排队或者执行中) 重复提交直接忽略
+ * 3.队列满时按 hmdp.cache.rebuild.reject-policy 丢弃(调用方继续返回旧值 下次读取再提交) 或者在调用方线程执行
+ * 4.重建异常记录日志与指标 不会抛到线程池里丢失
+ * 指标: cache.rebuild{outcome} 重建耗时 cache.rebuild.queue 队列长度 cache.rebuild.rejected cache.rebuild.deduplicated
+ * 应用关闭时不再接收任务 等待已提交的任务执行完 最多 shutdown-timeout
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //排队或者执行中的key
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor executor;
+
+    private Timer success;
+
+    private Timer error;
+
+    private Counter rejected;
+
+    private Counter deduplicated;
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.Rebuild config = cacheProperties.getRebuild();
+        executor = new ThreadPoolExecutor(config.getThreads(), config.getThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getQueueCapacity()),
+                ThreadUtil.newNamedThreadFactory("cache-rebuild-", true),
+                new ThreadPoolExecutor.AbortPolicy());
+        success = timer("success");
+        error = timer("error");
+        rejected = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+        deduplicated = Counter.builder("cache.rebuild.deduplicated").register(meterRegistry);
+        Gauge.builder("cache.rebuild.queue", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(cacheProperties.getRebuild().getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建任务没有在关闭超时内完成 剩余{}个", executor.getQueue().size());
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 提交key的重建任务
+     * @return false 这个key已经有重建任务 或者队列已满被丢弃
+     */
+    public boolean submit(String key, Runnable rebuild) {
+        if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            deduplicated.increment();
+            return false;
+        }
+        Runnable task = () -> run(key, rebuild);
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            if (cacheProperties.getRebuild().getRejectPolicy() == CacheProperties.RejectPolicy.CALLER_RUNS) {
+                task.run();
+                return true;
+            }
+            pending.remove(key);
+            log.debug("缓存重建队列已满 丢弃 key={}", key);
+            return false;
+        }
+    }
+
+    private void run(String key, Runnable rebuild) {
+        long begin = System.nanoTime();
+        try {
+            rebuild.run();
+            success.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            error.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            log.error("缓存重建失败 key={}", key, e);
+        } finally {
+            pending.remove(key);
+        }
+    }
+
+    private Timer timer(String outcome) {
+        return Timer.builder("cache.rebuild")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
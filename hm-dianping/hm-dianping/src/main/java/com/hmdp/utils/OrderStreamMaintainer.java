@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/**
+ * 订单stream的维护任务
+ * 1.裁剪 已经ack的消息一直留在stream中 按 XTRIM MINID ~ 删除
+ *   MINID取 pending-list中最小的id 没有pending时取消费者组的last-delivered-id
+ *   比它小的消息都已经投递并确认过 未确认与未投递的消息不会被删除
+ * 2.上报 每个分区的长度 内存占用 pending数 消费延迟 通过 /actuator/metrics/seckill.stream.* 查看 并打印日志
+ */
+@Slf4j
+@Component
+public class OrderStreamMaintainer {
+
+    //XTRIM MINID 与 MEMORY USAGE 都返回整数 通过脚本执行 stream_maintain.lua
+    private static final String MAINTAIN_SCRIPT = "stream_maintain";
+
+    private final Map<String, StreamStats> stats = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService maintenanceExecutor;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @PostConstruct
+    private void init() {
+        long interval = seckillProperties.getOrder().getMaintenance().getInterval().toMillis();
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-stream-", true));
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintainAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        maintenanceExecutor.shutdownNow();
+    }
+
+    private void maintainAll() {
+        List<String> streamKeys = new ArrayList<>(seckillProperties.getOrder().streamKeys());
+        streamKeys.add(SECKILL_ORDER_DLQ_KEY);
+        for (String streamKey : streamKeys) {
+            try {
+                maintain(streamKey);
+            } catch (Exception e) {
+                log.error("维护订单stream异常 stream={}", streamKey, e);
+            }
+        }
+    }
+
+    private void maintain(String streamKey) {
+        SeckillProperties.Maintenance config = seckillProperties.getOrder().getMaintenance();
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            return;
+        }
+        StreamStats stream = stats.computeIfAbsent(streamKey, this::register);
+        //1.裁剪
+        if (config.isTrimEnabled()) {
+            if (SECKILL_ORDER_DLQ_KEY.equals(streamKey)) {
+                //死信队列没有消费者组 只保留最近的 dlqMaxLen 条
+                stringRedisTemplate.opsForStream().trim(streamKey, config.getDlqMaxLen(), true);
+            } else {
+                trim(streamKey, stream);
+            }
+        }
+        //2.统计
+        stream.length.set(stringRedisTemplate.opsForStream().size(streamKey));
+        Long memory = redisScriptRegistry.execute(MAINTAIN_SCRIPT, Collections.singletonList(streamKey), "memory");
+        stream.memory.set(memory == null ? 0 : memory);
+        log.info("订单stream stream={} length={} memory={}B pending={} lag={}",
+                streamKey, stream.length.get(), stream.memory.get(), stream.pending.get(), stream.lag.get());
+    }
+
+    /**
+     * XTRIM stream.orders MINID ~ 安全的最小id  需要redis 6.2
+     */
+    private void trim(String streamKey, StreamStats stream) {
+        StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(streamKey).stream()
+                .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                .findFirst()
+                .orElse(null);
+        if (group == null) {
+            return;
+        }
+        //1.最早未确认的消息 没有时用最后投递的消息
+        PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_ORDER_GROUP);
+        long pendingCount = pending == null ? 0 : pending.getTotalPendingMessages();
+        String minId = pendingCount > 0 ? pending.minMessageId() : group.lastDeliveredId();
+        stream.pending.set(pendingCount);
+        //2.redis 7 的XINFO GROUPS直接给出lag 低版本: 已投递到最后一条时为0 否则裁剪后剩下的除了pending基本都是未投递的消息
+        Object lag = group.getRaw().get("lag");
+        if (lag instanceof Long) {
+            stream.lag.set((Long) lag);
+        } else if (group.lastDeliveredId().equals(stringRedisTemplate.opsForStream().info(streamKey).lastGeneratedId())) {
+            stream.lag.set(0);
+        } else {
+            stream.lag.set(Math.max(stringRedisTemplate.opsForStream().size(streamKey) - pendingCount, 0));
+        }
+        if (minId == null || RecordId.of(minId).getTimestamp() == 0) {
+            return;
+        }
+        //3.近似裁剪 按宏节点整块删除 开销很小
+        Long trimmed = redisScriptRegistry.execute(MAINTAIN_SCRIPT, Collections.singletonList(streamKey), "trim", minId);
+        if (trimmed != null && trimmed > 0) {
+            log.debug("裁剪订单stream stream={} minId={} trimmed={}", streamKey, minId, trimmed);
+        }
+    }
+
+    private StreamStats register(String streamKey) {
+        StreamStats stream = new StreamStats();
+        gauge("seckill.stream.length", streamKey, stream.length);
+        gauge("seckill.stream.memory", streamKey, stream.memory);
+        gauge("seckill.stream.pending", streamKey, stream.pending);
+        gauge("seckill.stream.lag", streamKey, stream.lag);
+        return stream;
+    }
+
+    private void gauge(String name, String streamKey, AtomicLong value) {
+        Gauge.builder(name, value, AtomicLong::get)
+                .tag("stream", streamKey)
+                .register(meterRegistry);
+    }
+
+    private static class StreamStats {
+        private final AtomicLong length = new AtomicLong();
+        private final AtomicLong memory = new AtomicLong();
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicLong lag = new AtomicLong();
+    }
+}
@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    //上次重建查询数据库的耗时 毫秒 用于提前刷新 旧的值没有
+    private Long rebuildMillis;
 }
@@ -1,27 +1,100 @@
 package com.hmdp.utils;
 
 
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * 全局id 高32位是时间戳(秒) 低32位是当天的序列号
+ * 号段模式下 每次从 icr:{prefix}:{date} INCRBY step 领取一段序列号 在内存中无锁发放
+ * 当前号段用到 prefetchThreshold 时异步领取下一段 用完后直接切换 不等待redis
+ * 号段只在领取它的那一天使用 跨天后丢弃 重新领取新日期的号段 保证同一秒内序列号不重复
+ * 代价: 应用重启时没用完的号段作废 序列号不连续
+ */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillProperties seckillProperties;
+
     private static final long BEGIN_TIMESTAMP=1640995200L; //开始的时间戳
 
     private static final int COUNT_BITS=32; //序列号
 
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    //与 LocalDateTime.now() 使用同一个时区 把本地时间当作UTC计算秒数
+    private static final TimeZone ZONE = TimeZone.getDefault();
 
+    //每个前缀一个号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    //异步领取下一个号段的线程
+    private ExecutorService prefetchExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (seckillProperties.getIdSegment().isEnabled()) {
+            prefetchExecutor = Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-segment-", true));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+    }
 
     public long nextId(String keyPrefix){
+        if (!seckillProperties.getIdSegment().isEnabled()) {
+            return nextIdByIncr(keyPrefix);
+        }
+        //1.生成时间戳 与原来的 LocalDateTime.now().toEpochSecond(UTC) 相同
+        long millis = System.currentTimeMillis();
+        long nowSecond = (millis + ZONE.getOffset(millis)) / 1000;
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        //2.从号段中取序列号 号段属于当天
+        SegmentBuffer buffer = buffers.get(keyPrefix);
+        if (buffer == null) {
+            buffer = buffers.computeIfAbsent(keyPrefix,
+                    prefix -> new SegmentBuffer(prefix, day -> lease(prefix, day), prefetchExecutor));
+        }
+        long count = buffer.next(nowSecond / SECONDS_PER_DAY);
+        //3.拼接并返回
+        return timestamp << COUNT_BITS | count;
+    }
+
+    /**
+     * 每个id一次 INCR
+     */
+    private long nextIdByIncr(String keyPrefix){
         //1.生成时间戳
         LocalDateTime now=LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -30,7 +103,7 @@ public class RedisIdWorker {
 
         //2.1获取当前的日期 精确到天 以每一天为一个时间戳 即可以统计时间 又可以防止总量的数据过多
 
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
 
         //2.2 自增长 redis自带的自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
@@ -42,5 +115,136 @@ public class RedisIdWorker {
         return timestamp<<COUNT_BITS|count;
     }
 
+    /**
+     * 从redis领取一段序列号 INCRBY icr:{prefix}:{date} step 返回值是这一段的最大值
+     */
+    private Segment lease(String keyPrefix, long day) {
+        SeckillProperties.IdSegment config = seckillProperties.getIdSegment();
+        long step = Math.max(config.getStep(), 1);
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+        if (max == null) {
+            throw new IllegalStateException("领取id号段失败 prefix=" + keyPrefix);
+        }
+        long start = max - step + 1;
+        long prefetchAt = start + Math.min((long) (step * config.getPrefetchThreshold()), step - 1);
+        log.debug("领取id号段 prefix={} date={} start={} max={}", keyPrefix, date, start, max);
+        return new Segment(day, start, max, prefetchAt);
+    }
+
+    /**
+     * 一个前缀的号段缓冲 leaser按日期领取号段 prefetchExecutor异步预取下一段
+     */
+    static class SegmentBuffer {
+
+        private final String keyPrefix;
+
+        private final LongFunction<Segment> leaser;
+
+        private final Executor prefetchExecutor;
+
+        //正在发放的号段
+        private volatile Segment current;
+
+        //预取的下一个号段
+        private volatile Segment next;
+
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix, LongFunction<Segment> leaser, Executor prefetchExecutor) {
+            this.keyPrefix = keyPrefix;
+            this.leaser = leaser;
+            this.prefetchExecutor = prefetchExecutor;
+        }
+
+        /**
+         * 无锁取号 只有号段用完或者跨天时才进入同步块切换号段
+         */
+        long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.max) {
+                        if (value == segment.prefetchAt) {
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long day) {
+            if (current != exhausted) {
+                //其他线程已经切换了
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            //预取的号段不是当天的 或者不比当前号段大 丢弃 同步领取
+            current = isAfter(prefetched, exhausted, day) ? prefetched : leaser.apply(day);
+        }
+
+        /**
+         * 预取的号段是当天的 并且在当前号段之后 才能使用
+         * 预取还没完成时号段用完了 会同步领取一段更大的号段 之后完成的预取号段更小 用它会让同一秒内的id变小
+         */
+        private static boolean isAfter(Segment segment, Segment current, long day) {
+            return segment != null && segment.day == day
+                    && (current == null || current.day != day || segment.start > current.max);
+        }
+
+        private void prefetch(long day) {
+            if (next != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        Segment leased = leaser.apply(day);
+                        synchronized (this) {
+                            //预取期间可能已经跨天 按当前号段的日期判断 前一天的号段留在next中会挡住新一天的预取
+                            Segment using = current;
+                            if (using != null && isAfter(leased, using, using.day)) {
+                                next = leased;
+                            } else {
+                                log.debug("丢弃过期的预取号段 prefix={} start={}", keyPrefix, leased.start);
+                            }
+                        }
+                    } catch (Exception e) {
+                        //预取失败 号段用完时同步领取
+                        log.warn("预取id号段失败 prefix={} {}", keyPrefix, e.toString());
+                    } finally {
+                        prefetching.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                //应用关闭中 线程池已经停止
+                prefetching.set(false);
+            }
+        }
+    }
 
+    static class Segment {
+        //号段所属的日期 epoch day
+        private final long day;
+        //号段的第一个序列号
+        private final long start;
+        //下一个发放的序列号
+        private final AtomicLong cursor;
+        //号段的最大值(包含)
+        private final long max;
+        //发放到这个序列号时预取下一段
+        private final long prefetchAt;
+
+        Segment(long day, long start, long max, long prefetchAt) {
+            this.day = day;
+            this.start = start;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
 }
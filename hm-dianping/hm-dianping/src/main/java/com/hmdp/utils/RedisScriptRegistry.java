@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lua脚本注册中心
+ * 启动时加载classpath根目录下所有的 .lua 脚本 SCRIPT LOAD 到redis 记录sha
+ * 执行时只发送 EVALSHA redis重启丢失脚本(NOSCRIPT)时自动重新加载并重试
+ * 每个脚本的调用次数 耗时分布 重新加载次数 通过 /actuator/metrics/redis.script 查看
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    private static final String SCRIPT_LOCATION = "classpath*:*.lua";
+
+    private final Map<String, RegisteredScript> scripts = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @PostConstruct
+    private void init() throws IOException {
+        //1.扫描所有脚本 以文件名(不含后缀)作为脚本名
+        org.springframework.core.io.Resource[] resources =
+                new PathMatchingResourcePatternResolver().getResources(SCRIPT_LOCATION);
+        for (org.springframework.core.io.Resource resource : resources) {
+            String name = FileUtil.mainName(resource.getFilename());
+            String body;
+            try (InputStream in = resource.getInputStream()) {
+                body = IoUtil.read(in, StandardCharsets.UTF_8);
+            }
+            scripts.put(name, new RegisteredScript(name, body));
+        }
+        //2.预加载到redis
+        try {
+            stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+                scripts.values().forEach(script -> load(connection, script));
+                return null;
+            });
+        } catch (Exception e) {
+            //redis暂时不可用 第一次执行时会通过NOSCRIPT重新加载
+            log.warn("预加载lua脚本失败 {}", e.toString());
+        }
+    }
+
+    /**
+     * 通过 EVALSHA 执行脚本 脚本的返回值必须是整数
+     * @param name 脚本名 即文件名 如 seckill
+     * @param keys KEYS
+     * @param args ARGV
+     */
+    public Long execute(String name, List<String> keys, Object... args) {
+        return eval(name, ReturnType.INTEGER, keys, args);
+    }
+
+    /**
+     * 通过 EVALSHA 执行脚本 脚本的返回值必须是字符串数组
+     */
+    public List<String> executeForList(String name, List<String> keys, Object... args) {
+        List<Object> result = eval(name, ReturnType.MULTI, keys, args);
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<>(result.size());
+        for (Object value : result) {
+            values.add(value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : String.valueOf(value));
+        }
+        return values;
+    }
+
+    private <T> T eval(String name, ReturnType returnType, List<String> keys, Object... args) {
+        RegisteredScript script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("未注册的lua脚本: " + name);
+        }
+        //1.KEYS与ARGV一起序列化
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = String.valueOf(args[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        //2.执行 并记录耗时
+        long begin = System.nanoTime();
+        try {
+            T result = stringRedisTemplate.execute((RedisCallback<T>) connection -> {
+                try {
+                    return connection.scriptingCommands().evalSha(script.sha, returnType, keys.size(), keysAndArgs);
+                } catch (RuntimeException e) {
+                    if (!isNoScript(e)) {
+                        throw e;
+                    }
+                    //3.redis中没有该脚本(重启或SCRIPT FLUSH) 重新加载后再执行一次
+                    script.reloads.increment();
+                    log.warn("lua脚本 {} 不存在 重新加载", script.name);
+                    load(connection, script);
+                    return connection.scriptingCommands().evalSha(script.sha, returnType, keys.size(), keysAndArgs);
+                }
+            });
+            script.success.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            return result;
+        } catch (RuntimeException e) {
+            script.error.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+    }
+
+    private void load(RedisConnection connection, RegisteredScript script) {
+        String sha = connection.scriptingCommands().scriptLoad(script.body.getBytes(StandardCharsets.UTF_8));
+        log.debug("加载lua脚本 {} sha={}", script.name, sha);
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class RegisteredScript {
+        private final String name;
+        private final String body;
+        //redis的脚本sha就是脚本内容的sha1
+        private final String sha;
+        private final Timer success;
+        private final Timer error;
+        private final Counter reloads;
+
+        RegisteredScript(String name, String body) {
+            this.name = name;
+            this.body = body;
+            this.sha = DigestUtil.sha1Hex(body);
+            this.success = timer(name, "success");
+            this.error = timer(name, "error");
+            this.reloads = Counter.builder("redis.script.reload")
+                    .tag("script", name)
+                    .register(meterRegistry);
+        }
+
+        private Timer timer(String name, String outcome) {
+            return Timer.builder("redis.script")
+                    .tag("script", name)
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -4,14 +4,14 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     /**
      * 拦截器 用于拦截session请求 在拦截后保存线程到ThreadLocal中（每个tomcat都是一个特殊的线程 有特殊的id）
@@ -79,4 +79,13 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         //移除用户
         UserHolder.removeUser();
     }
+
+    /**
+     * controller返回CompletableFuture时 当前线程先返回 afterCompletion在异步完成后的另一次分派中执行
+     * 这里移除当前线程的用户 避免留给下一个请求
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 秒杀的两级限流
+ * 第一级 每个节点每张券一个本地令牌桶 无锁 超出的请求不访问redis直接返回繁忙
+ * 第二级 全局令牌桶 在seckill.lua中与库存判断同一次往返完成 这里只负责提供每张券的参数
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 本地令牌桶取一个令牌
+     * @return 是否放行 未开启限流或该券未配置本地速率时总是放行
+     */
+    public boolean tryAcquire(Long voucherId) {
+        SeckillProperties.RateLimit config = seckillProperties.getRateLimit();
+        if (!config.isEnabled()) {
+            return true;
+        }
+        SeckillProperties.Limit limit = config.limitOf(voucherId);
+        if (limit.getLocalRate() <= 0) {
+            return true;
+        }
+        return buckets.computeIfAbsent(voucherId, id -> new TokenBucket(limit.getLocalRate(), limit.getLocalBurst()))
+                .tryAcquire();
+    }
+
+    /**
+     * 全局令牌桶的参数 [每秒令牌数, 桶容量] 速率为0代表不限流
+     */
+    public long[] globalLimit(Long voucherId) {
+        SeckillProperties.RateLimit config = seckillProperties.getRateLimit();
+        if (!config.isEnabled()) {
+            return new long[]{0, 0};
+        }
+        SeckillProperties.Limit limit = config.limitOf(voucherId);
+        return new long[]{limit.getGlobalRate(), Math.max(limit.getGlobalBurst(), 1)};
+    }
+
+    /**
+     * 无锁令牌桶 GCRA算法
+     * 只保存下一个令牌的理论到达时间 tat 每次请求把 tat 推后一个间隔
+     * 推后之后超出当前时间的部分不能大于桶容量对应的时间 CAS失败时重试
+     */
+    static class TokenBucket {
+        //每个令牌的间隔 纳秒
+        private final long interval;
+        //允许的突发量对应的时间 纳秒
+        private final long tolerance;
+        //纳秒时钟
+        private final LongSupplier clock;
+        private final AtomicLong tat;
+
+        TokenBucket(long rate, long burst) {
+            this(rate, burst, System::nanoTime);
+        }
+
+        TokenBucket(long rate, long burst, LongSupplier clock) {
+            //速率超过每秒10亿时 整除得到0 容量也变成0 所有请求都会放行 至少按1纳秒计算
+            this.interval = Math.max(TimeUnit.SECONDS.toNanos(1) / rate, 1);
+            this.tolerance = interval * Math.max(burst, 1);
+            this.clock = clock;
+            this.tat = new AtomicLong(clock.getAsLong());
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                long now = clock.getAsLong();
+                long current = tat.get();
+                long next = Math.max(current, now) + interval;
+                if (next - now > tolerance) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_EPOCH_KEY;
+
+/**
+ * 本地售罄标记
+ * 秒杀脚本返回库存不足后 在本地记下该优惠券已售罄 之后的请求直接拒绝 不再访问redis
+ * 标记通过redis发布订阅同步给所有节点 补充库存时清除
+ * 补充库存的通知同时让各节点丢弃本地缓存的已下单用户 取消订单的用户可以再次下单
+ * 每次补充库存 seckill:soldout:epoch:{id} 加1 售罄标记带上执行脚本前的版本
+ * 补充库存之后才到达的旧脚本结果(本节点或者其他节点) 版本比当前小 不会再标记售罄
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutMarker implements MessageListener {
+
+    //消息格式 1:voucherId:epoch 售罄  0:voucherId:epoch 补充库存
+    private static final String SOLD_OUT = "1";
+    private static final String REPLENISHED = "0";
+
+    //voucherId -> 本节点已知的最新库存版本 第一次用到时从redis读取
+    private final Map<Long, Long> epochs = new ConcurrentHashMap<>();
+
+    //voucherId -> 售罄标记的版本 与当前版本相同才算售罄
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    //收到补充库存的通知后回调 参数为voucherId
+    private final List<Consumer<Long>> replenishListeners = new CopyOnWriteArrayList<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 是否已售罄 只读本地内存
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long marked = soldOut.get(voucherId);
+        return marked != null && marked.equals(epochs.get(voucherId));
+    }
+
+    /**
+     * 当前的库存版本 执行秒杀脚本之前读取 库存不足时用它标记售罄
+     */
+    public long epoch(Long voucherId) {
+        return epochs.computeIfAbsent(voucherId, id -> {
+            String epoch = stringRedisTemplate.opsForValue().get(SECKILL_SOLD_OUT_EPOCH_KEY + id);
+            return epoch == null ? 0L : Long.parseLong(epoch);
+        });
+    }
+
+    /**
+     * 标记售罄 并通知其他节点 本地已经标记过的不再重复广播
+     * @param epoch 执行脚本前读取的库存版本 之后又补充过库存的 忽略
+     */
+    public void markSoldOut(Long voucherId, long epoch) {
+        if (epoch < epoch(voucherId)) {
+            return;
+        }
+        Long previous = soldOut.put(voucherId, epoch);
+        if (previous == null || previous != epoch) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + ":" + voucherId + ":" + epoch);
+        }
+    }
+
+    /**
+     * 注册补充库存(包括取消订单归还库存)的回调 本节点与其他节点补充库存时都会调用
+     */
+    public void onReplenished(Consumer<Long> listener) {
+        replenishListeners.add(listener);
+    }
+
+    /**
+     * 补充库存后增加库存版本 清除售罄标记 并通知其他节点
+     */
+    public void clear(Long voucherId) {
+        String key = SECKILL_SOLD_OUT_EPOCH_KEY + voucherId;
+        long epoch = stringRedisTemplate.opsForValue().increment(key);
+        long known = epochs.getOrDefault(voucherId, 0L);
+        if (epoch <= known) {
+            //redis数据丢失后版本从头开始 跳过本节点已经见过的版本
+            epoch = stringRedisTemplate.opsForValue().increment(key, known + 1 - epoch);
+        }
+        replenished(voucherId, epoch);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, REPLENISHED + ":" + voucherId + ":" + epoch);
+    }
+
+    private void replenished(Long voucherId, long epoch) {
+        epochs.merge(voucherId, epoch, Math::max);
+        //更新的售罄标记(消息乱序时)保留
+        soldOut.computeIfPresent(voucherId, (id, marked) -> marked < epoch ? null : marked);
+        replenishListeners.forEach(listener -> listener.accept(voucherId));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split(":");
+        if (parts.length != 3) {
+            return;
+        }
+        try {
+            Long voucherId = Long.valueOf(parts[1]);
+            long epoch = Long.parseLong(parts[2]);
+            if (!SOLD_OUT.equals(parts[0])) {
+                replenished(voucherId, epoch);
+            } else if (epoch >= epoch(voucherId)) {
+                //本节点漏掉了补充库存的通知 以标记的版本为准
+                epochs.merge(voucherId, epoch, Math::max);
+                soldOut.merge(voucherId, epoch, Math::max);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无法解析售罄消息 {}", body);
+        }
+    }
+}
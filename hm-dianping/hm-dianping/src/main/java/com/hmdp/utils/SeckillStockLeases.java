@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存租约
+ * 库存很大的券 每个节点一次从 seckill:stock:{id} 预占一段库存(租约) 在本地用AtomicInteger扣减 不再每单访问库存key
+ * 一人一单先查本地集合 再用 SADD seckill:order:{id} 占位 返回0说明已经下过单 本地集合有上限 取消订单时丢弃
+ * 租约到期或应用关闭时 把没卖完的库存还给redis
+ * 代价: 卖到最后时库存可能在其他节点的租约中 本节点会短暂地返回库存不足 节点宕机时租约中的库存丢失(少卖 不会超卖)
+ */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+
+    //本地缓存每个优惠券是否使用租约 第一次查询redis后缓存
+    private final Map<Long, Boolean> leasedVouchers = new ConcurrentHashMap<>();
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    //本地已经下过单的用户 voucherId -> userIds 有数量上限 补充库存(取消订单)时整体丢弃 之后由 SADD 判断
+    private final Map<Long, Cache<Long, Boolean>> buyers = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService expireExecutor;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @PostConstruct
+    private void init() {
+        if (!seckillProperties.getLease().isEnabled()) {
+            return;
+        }
+        //取消订单时redis中的一人一单记录已经删除 本地的也要丢弃
+        seckillSoldOutMarker.onReplenished(buyers::remove);
+        expireExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-lease-", true));
+        expireExecutor.scheduleWithFixedDelay(this::releaseExpired, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 应用关闭 归还所有租约中剩余的库存
+     */
+    @PreDestroy
+    private void destroy() {
+        if (expireExecutor != null) {
+            expireExecutor.shutdownNow();
+        }
+        leases.forEach((voucherId, lease) -> release(voucherId, lease));
+    }
+
+    /**
+     * 新增或重建秒杀券时 判断是否使用租约 库存不少于 minStock 的券才使用
+     * @return 是否使用租约
+     */
+    public boolean register(Long voucherId, int stock) {
+        SeckillProperties.Lease config = seckillProperties.getLease();
+        if (!config.isEnabled() || stock < config.getMinStock()) {
+            return false;
+        }
+        stringRedisTemplate.opsForHash().put(SECKILL_LEASED_KEY, voucherId.toString(), "1");
+        leasedVouchers.put(voucherId, true);
+        return true;
+    }
+
+    /**
+     * 优惠券是否使用租约
+     */
+    public boolean isLeased(Long voucherId) {
+        if (!seckillProperties.getLease().isEnabled()) {
+            return false;
+        }
+        return leasedVouchers.computeIfAbsent(voucherId,
+                id -> stringRedisTemplate.opsForHash().hasKey(SECKILL_LEASED_KEY, id.toString()));
+    }
+
+    /**
+     * 租约秒杀 返回值与seckill.lua一致 0成功 1库存不足 2重复下单 3尚未开始 4已经结束
+     * 成功后由调用方发送订单消息
+     */
+    public int seckill(Long voucherId, Long userId) {
+        //1.判断秒杀时间
+        int window = seckillStockShards.checkWindow(voucherId);
+        if (window != 0) {
+            return window;
+        }
+        //2.本地判断是否下过单
+        Cache<Long, Boolean> localBuyers = buyers.computeIfAbsent(voucherId, id -> Caffeine.newBuilder()
+                .maximumSize(seckillProperties.getLease().getLocalBuyers())
+                .build());
+        if (localBuyers.getIfPresent(userId) != null) {
+            return 2;
+        }
+        //3.刚刚从redis取不到库存 不再访问redis
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        long retryMillis = seckillProperties.getLease().getEmptyRetry().toMillis();
+        if (lease.remaining.get() <= 0 && System.currentTimeMillis() - lease.emptyAt < retryMillis) {
+            return 1;
+        }
+        //4.一人一单占位 SADD seckill:order:{id} userId
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        Long added = stringRedisTemplate.opsForSet().add(orderKey, userId.toString());
+        localBuyers.put(userId, Boolean.TRUE);
+        if (added == null || added == 0) {
+            return 2;
+        }
+        //5.从租约中扣减 租约用完了去redis续租
+        if (lease.tryTake() || renew(voucherId, lease)) {
+            return 0;
+        }
+        //6.没有库存了 释放占位
+        stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        localBuyers.invalidate(userId);
+        return 1;
+    }
+
+    /**
+     * 从redis预占一段库存 同一时间每个券只有一个线程续租 其他线程等待后直接从新租约扣减
+     */
+    private boolean renew(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            //双重检查 其他线程可能已经续租了
+            if (lease.tryTake()) {
+                return true;
+            }
+            int chunk = seckillProperties.getLease().getChunkSize();
+            long taken = seckillStockShards.take(SECKILL_STOCK_KEY + voucherId, chunk);
+            if (taken <= 0) {
+                lease.emptyAt = System.currentTimeMillis();
+                return false;
+            }
+            //自己先用掉一个 剩下的放入租约
+            lease.expiresAt = System.currentTimeMillis() + seckillProperties.getLease().getTtl().toMillis();
+            lease.remaining.addAndGet((int) taken - 1);
+            log.debug("续租秒杀库存 voucherId={} taken={}", voucherId, taken);
+            return true;
+        }
+    }
+
+    private void releaseExpired() {
+        long now = System.currentTimeMillis();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.remaining.get() > 0 && now >= lease.expiresAt) {
+                try {
+                    release(voucherId, lease);
+                } catch (Exception e) {
+                    log.error("归还秒杀库存租约异常 voucherId={}", voucherId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 把租约中剩余的库存还给redis
+     */
+    private void release(Long voucherId, Lease lease) {
+        int rest = lease.drain();
+        if (rest > 0) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, rest);
+            log.debug("归还秒杀库存租约 voucherId={} rest={}", voucherId, rest);
+        }
+    }
+
+    private static class Lease {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long expiresAt;
+        //最后一次从redis取不到库存的时间
+        private volatile long emptyAt;
+
+        boolean tryTake() {
+            while (true) {
+                int current = remaining.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (remaining.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 取出剩余的全部库存
+         */
+        int drain() {
+            return remaining.getAndSet(0);
+        }
+    }
+}
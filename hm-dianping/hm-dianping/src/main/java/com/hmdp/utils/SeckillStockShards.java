@@ -0,0 +1,328 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 热点秒杀券的分片库存
+ * 库存拆成M份 seckill:stock:{voucherId:i} 订单集合同样拆分 seckill:order:{voucherId:i}
+ * 用户固定在 userId%M 的分片下单 该分片卖完了才去其他分片取库存
+ * 后台任务在快卖完时把剩余库存在分片之间重新平均
+ * 分片下单失败不代表售罄 只有所有分片之和为0时才标记售罄
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    private static final String SHARD_SCRIPT = "seckill_shard";
+
+    //本地缓存每个优惠券的分片数 0代表没有分片
+    private final Map<Long, Local<Integer>> shardCounts = new ConcurrentHashMap<>();
+
+    //本地缓存分片券的秒杀时间 [开始, 结束] 单位秒 元数据与分片不在同一个slot 无法在脚本中判断
+    private final Map<Long, Local<long[]>> windows = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService rebalanceExecutor;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    /**
+     * 本地缓存的值与过期时间
+     */
+    private static class Local<T> {
+        private final T value;
+        private final long expireAt;
+
+        private Local(T value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        //新增秒杀券 预热后 所有节点重新读取分片数与秒杀时间
+        seckillSoldOutMarker.onReplenished(this::invalidate);
+        SeckillProperties.Shard config = seckillProperties.getShard();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long interval = config.getRebalanceInterval().toMillis();
+        rebalanceExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-rebalance-", true));
+        rebalanceExecutor.scheduleWithFixedDelay(this::rebalanceAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (rebalanceExecutor != null) {
+            rebalanceExecutor.shutdownNow();
+        }
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 用户所属的分片
+     */
+    public static int homeShard(Long userId, int shards) {
+        return (int) (userId % shards);
+    }
+
+    /**
+     * 优惠券的分片数 0代表没有分片 查询redis后在本地缓存 local-ttl
+     */
+    public int shardCount(Long voucherId) {
+        if (!seckillProperties.getShard().isEnabled()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Local<Integer> cached = shardCounts.get(voucherId);
+        if (cached != null && cached.expireAt > now) {
+            return cached.value;
+        }
+        Object count = stringRedisTemplate.opsForHash().get(SECKILL_SHARDS_KEY, voucherId.toString());
+        int shards = count == null ? 0 : Integer.parseInt(count.toString());
+        shardCounts.put(voucherId, local(shards, now));
+        return shards;
+    }
+
+    /**
+     * 丢弃本地缓存的分片数与秒杀时间
+     */
+    public void invalidate(Long voucherId) {
+        shardCounts.remove(voucherId);
+        windows.remove(voucherId);
+    }
+
+    private <T> Local<T> local(T value, long now) {
+        return new Local<>(value, now + seckillProperties.getShard().getLocalTtl().toMillis());
+    }
+
+    /**
+     * 新增秒杀券时 判断是否需要分片 需要的话把库存平均写入各个分片
+     * @return 分片数 0代表没有使用分片
+     */
+    public int initStock(Long voucherId, int stock) {
+        int shards = shardsFor(stock);
+        if (shards > 0) {
+            writeStock(stringRedisTemplate, voucherId, stock, shards);
+        }
+        return shards;
+    }
+
+    /**
+     * 该库存需要的分片数 0代表不分片
+     */
+    public int shardsFor(int stock) {
+        SeckillProperties.Shard config = seckillProperties.getShard();
+        if (!config.isEnabled() || stock < config.getMinStock() || config.getCount() <= 1) {
+            return 0;
+        }
+        return config.getCount();
+    }
+
+    /**
+     * 把库存平均写入各个分片 ops可以是pipeline 预热时与其他写入一起发送
+     */
+    public void writeStock(RedisOperations<String, String> ops, Long voucherId, int stock, int shards) {
+        for (int i = 0; i < shards; i++) {
+            //余数分给前面的分片
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            ops.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        ops.opsForHash().put(SECKILL_SHARDS_KEY, voucherId.toString(), String.valueOf(shards));
+        shardCounts.put(voucherId, local(shards, System.currentTimeMillis()));
+    }
+
+    /**
+     * 分片秒杀 返回值与seckill.lua一致 0成功 1库存不足 2重复下单 3尚未开始 4已经结束
+     */
+    public int seckill(Long voucherId, Long userId, int shards) {
+        //0.判断秒杀时间
+        int window = checkWindow(voucherId);
+        if (window != 0) {
+            return window;
+        }
+        int home = homeShard(userId, shards);
+        //1.在自己的分片下单 同时占住一人一单的位置
+        Long r = redisScriptRegistry.execute(SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home)),
+                "home", userId.toString());
+        if (r == null || r != 1) {
+            return r == null ? 1 : r.intValue();
+        }
+        //2.自己的分片卖完了 依次去其他分片取一个库存
+        for (int i = 1; i < shards; i++) {
+            if (take(stockKey(voucherId, (home + i) % shards), 1) == 1) {
+                return 0;
+            }
+        }
+        //3.所有分片都卖完了 释放一人一单的位置
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return 1;
+    }
+
+    /**
+     * 用本地缓存的秒杀时间判断 0在秒杀时间内 3尚未开始 4已经结束
+     * 元数据与分片(或租约)的库存不在同一个slot 无法在脚本中判断
+     */
+    public int checkWindow(Long voucherId) {
+        long nowMillis = System.currentTimeMillis();
+        Local<long[]> cached = windows.get(voucherId);
+        long[] window = cached != null && cached.expireAt > nowMillis ? cached.value : loadWindow(voucherId, nowMillis);
+        long now = nowMillis / 1000;
+        if (now < window[0]) {
+            return 3;
+        }
+        if (now > window[1]) {
+            return 4;
+        }
+        return 0;
+    }
+
+    /**
+     * 读取秒杀时间 元数据不存在(还没有写入或者redis数据丢失)时不缓存 下次再读
+     */
+    private long[] loadWindow(Long voucherId, long now) {
+        List<Object> meta = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_META_KEY + voucherId, Arrays.asList("begin", "end"));
+        long begin = meta.get(0) == null ? Long.MIN_VALUE : Long.parseLong(meta.get(0).toString());
+        long end = meta.get(1) == null ? Long.MAX_VALUE : Long.parseLong(meta.get(1).toString());
+        long[] window = new long[]{begin, end};
+        if (meta.get(0) != null || meta.get(1) != null) {
+            windows.put(voucherId, local(window, now));
+        }
+        return window;
+    }
+
+    /**
+     * 从一个库存key(分片或者整个库存)最多取出n个库存 返回实际取出的数量
+     */
+    public long take(String stockKey, long n) {
+        Long taken = redisScriptRegistry.execute(SHARD_SCRIPT, Collections.singletonList(stockKey), "take", String.valueOf(n));
+        return taken == null ? 0 : taken;
+    }
+
+    private void rebalanceAll() {
+        try {
+            Map<Object, Object> vouchers = stringRedisTemplate.opsForHash().entries(SECKILL_SHARDS_KEY);
+            vouchers.forEach((id, count) -> rebalance(Long.valueOf(id.toString()), Integer.parseInt(count.toString())));
+        } catch (Exception e) {
+            log.error("分片库存再平衡异常", e);
+        }
+    }
+
+    /**
+     * 该优惠券所有分片剩余库存之和 分片下单失败时用来判断是否真正售罄
+     */
+    public long totalStock(Long voucherId, int shards) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(stockKeys(voucherId, shards));
+        long total = 0;
+        if (values != null) {
+            for (String value : values) {
+                total += value == null ? 0 : Math.max(Long.parseLong(value), 0);
+            }
+        }
+        return total;
+    }
+
+    private static List<String> stockKeys(Long voucherId, int shards) {
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 某个分片快卖完时 把所有分片的库存重新平均
+     * 单机redis在一次脚本调用中完成 取出与补充之间不存在库存"在路上"的时刻
+     * 集群中各分片不在同一个slot 无法在一个脚本中访问 退化为逐个分片的取出与补充
+     */
+    private void rebalance(Long voucherId, int shards) {
+        long lowWater = seckillProperties.getShard().getRebalanceLowWater();
+        if (!isCluster()) {
+            redisScriptRegistry.execute(SHARD_SCRIPT, stockKeys(voucherId, shards), "rebalance", String.valueOf(lowWater));
+            return;
+        }
+        //1.查询各分片的库存
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(stockKeys(voucherId, shards));
+        long[] stocks = new long[shards];
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < shards; i++) {
+            String value = values == null ? null : values.get(i);
+            stocks[i] = value == null ? 0 : Math.max(Long.parseLong(value), 0);
+            total += stocks[i];
+            min = Math.min(min, stocks[i]);
+        }
+        //2.还没有分片快卖完 或者剩余的库存平均下来也不够 不需要平衡
+        long avg = total / shards;
+        if (min > lowWater || avg <= lowWater) {
+            return;
+        }
+        //3.从多的分片取出超出平均值的部分 被取出的分片至少保留平均值 总库存不会在中途变为0
+        long pool = 0;
+        for (int i = 0; i < shards; i++) {
+            if (stocks[i] > avg + 1) {
+                long taken = take(stockKey(voucherId, i), stocks[i] - avg);
+                stocks[i] -= taken;
+                pool += taken;
+            }
+        }
+        //4.补给少的分片
+        for (int i = 0; i < shards && pool > 0; i++) {
+            if (stocks[i] < avg) {
+                long give = Math.min(avg - stocks[i], pool);
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), give);
+                pool -= give;
+            }
+        }
+        //5.除不尽的余数 放回第一个分片
+        if (pool > 0) {
+            stringRedisTemplate.opsForValue().increment(stockKey(voucherId, 0), pool);
+        }
+    }
+
+    private boolean isCluster() {
+        RedisConnectionFactory factory = stringRedisTemplate.getConnectionFactory();
+        return factory instanceof LettuceConnectionFactory && ((LettuceConnectionFactory) factory).isClusterAware();
+    }
+}
@@ -1,9 +1,7 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import javax.annotation.Resource;
 import java.util.Collections;
@@ -21,18 +19,12 @@ public class SimpleRedisLock implements ILock{
     //添加UUID 给线程唯一一个标识
     private static final String ID_PREFIX = UUID.fastUUID().toString(true)+"-";
 
-    //定义lua脚本 即用来使redis的操作具有原子性
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    //lua脚本由注册中心统一加载 即用来使redis的操作具有原子性 unlock.lua
+    private RedisScriptRegistry redisScriptRegistry;
 
-    //初始化脚本 寻找脚本的文件 设置返回值类型  静态代码块 初始化的时候 直接加载完成
-    static {
-        UNLOCK_SCRIPT=new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
-    public SimpleRedisLock(StringRedisTemplate stringRedisTemplate, String name) {
+    public SimpleRedisLock(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry, String name) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
         this.name = name;
     }
 
@@ -55,8 +47,8 @@ public class SimpleRedisLock implements ILock{
     @Override
     public void unLock() {
         //调用lua脚本
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,//脚本
+        redisScriptRegistry.execute(
+                "unlock",//脚本
                 Collections.singletonList(KEY_PREFIX+name),//生成单一key的list集合
                 ID_PREFIX + Thread.currentThread().getId());//判断key取的值与该值
     }
@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 未支付订单超时取消 基于redis ZSET的延时队列
+ * 1.订单落库后 ZADD seckill:unpaid 到期时间 订单id 消息重复投递时NX不会推迟到期时间
+ * 2.定时认领到期的订单 order_timeout.lua 只读取 score<=now 的前N个 与队列总长度无关
+ * 3.一批订单在一个事务中取消并归还数据库库存 然后归还redis库存 删除一人一单的记录 最后ZREM
+ * 已支付或者没有落库(重复下单被唯一索引忽略)的订单直接从队列中删除
+ * 数据库提交后redis归还前宕机时 重新认领的订单已经不是未支付状态 redis库存不再归还(少卖 不会超卖)
+ */
+@Slf4j
+@Component
+public class UnpaidOrderTimeouts {
+
+    private static final String TIMEOUT_SCRIPT = "order_timeout";
+
+    private ScheduledExecutorService pollExecutor;
+
+    private Counter cancelled;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //订单服务依赖本类登记订单 @Lazy避免循环依赖
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Unpaid config = seckillProperties.getUnpaid();
+        if (!config.isEnabled()) {
+            return;
+        }
+        cancelled = Counter.builder("seckill.order.cancelled").register(meterRegistry);
+        long interval = config.getPollInterval().toMillis();
+        pollExecutor = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-unpaid-", true));
+        pollExecutor.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (pollExecutor != null) {
+            pollExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 登记刚落库的订单 到期时间为 现在+timeout
+     */
+    public void enqueue(List<VoucherOrder> orders) {
+        SeckillProperties.Unpaid config = seckillProperties.getUnpaid();
+        if (!config.isEnabled() || orders.isEmpty()) {
+            return;
+        }
+        double deadline = System.currentTimeMillis() + config.getTimeout().toMillis();
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(orders.size() * 2);
+        for (VoucherOrder order : orders) {
+            tuples.add(new DefaultTypedTuple<>(order.getId().toString(), deadline));
+        }
+        //ZADD seckill:unpaid NX deadline id1 deadline id2 ...
+        stringRedisTemplate.opsForZSet().addIfAbsent(SECKILL_UNPAID_KEY, tuples);
+    }
+
+    /**
+     * 一直认领到没有到期的订单为止 积压时每轮处理多批
+     */
+    private void poll() {
+        SeckillProperties.Unpaid config = seckillProperties.getUnpaid();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+                List<String> ids = redisScriptRegistry.executeForList(TIMEOUT_SCRIPT,
+                        Collections.singletonList(SECKILL_UNPAID_KEY),
+                        now, config.getBatchSize(), now + config.getClaimTtl().toMillis());
+                if (ids.isEmpty()) {
+                    return;
+                }
+                cancel(ids);
+                if (ids.size() < config.getBatchSize()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            //认领的订单留在队列中 claimTtl之后重新认领
+            log.error("取消未支付订单异常", e);
+        }
+    }
+
+    private void cancel(List<String> ids) {
+        //1.数据库 取消订单 归还库存
+        List<VoucherOrder> orders = voucherOrderService.cancelUnpaidOrders(
+                ids.stream().map(Long::valueOf).collect(Collectors.toList()));
+        //2.redis 归还库存 删除一人一单的记录 分片的券归还到用户所在的分片
+        if (!orders.isEmpty()) {
+            //分片数要在管道外查询 管道中的命令没有返回值
+            Map<Long, Integer> shardCounts = new HashMap<>();
+            orders.forEach(order -> shardCounts.computeIfAbsent(order.getVoucherId(), seckillStockShards::shardCount));
+            stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object execute(RedisOperations operations) {
+                    for (VoucherOrder order : orders) {
+                        String stockKey = SECKILL_STOCK_KEY + order.getVoucherId();
+                        String orderKey = SECKILL_ORDER_KEY + order.getVoucherId();
+                        int shards = shardCounts.get(order.getVoucherId());
+                        if (shards > 0) {
+                            int home = SeckillStockShards.homeShard(order.getUserId(), shards);
+                            stockKey = SeckillStockShards.stockKey(order.getVoucherId(), home);
+                            orderKey = SeckillStockShards.orderKey(order.getVoucherId(), home);
+                        }
+                        operations.opsForValue().increment(stockKey);
+                        operations.opsForSet().remove(orderKey, order.getUserId().toString());
+                    }
+                    return null;
+                }
+            });
+            //3.有库存了 清除售罄标记
+            shardCounts.keySet().forEach(seckillSoldOutMarker::clear);
+            cancelled.increment(orders.size());
+            log.info("取消未支付订单 claimed={} cancelled={}", ids.size(), orders.size());
+        }
+        //4.处理完成 从延时队列中删除
+        stringRedisTemplate.opsForZSet().remove(SECKILL_UNPAID_KEY, ids.toArray());
+    }
+}
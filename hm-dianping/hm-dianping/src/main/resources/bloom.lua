@@ -0,0 +1,46 @@
+-- 布隆过滤器 位图保存在redis中 所有节点共用
+-- KEYS[1] 位图key bloom:{keyPrefix}
+-- ARGV[1] add 写入 / check 判断 / checkBatch 批量判断
+-- ARGV[2..] 元素对应的k个位 checkBatch时 ARGV[2]是k ARGV[3..]是每个元素的k个位依次排列
+if (ARGV[1] == 'add') then
+    -- 位图还没有建立(首次建立写的是临时key 或者redis数据丢失) 不写入
+    -- 否则SETBIT会创建一个几乎为空的位图 其他id都被判断为一定不存在 建立完成后再补写这段时间新增的数据
+    if (redis.call('exists', KEYS[1]) == 0) then
+        return 0
+    end
+    for i = 2, #ARGV do
+        redis.call('setbit', KEYS[1], ARGV[i], 1)
+    end
+    return 1
+end
+-- 过滤器还没有建立 不能判断 按可能存在处理
+local built = redis.call('exists', KEYS[1]) == 1
+if (ARGV[1] == 'checkBatch') then
+    -- 返回每个元素的结果 1可能存在 0一定不存在
+    local k = tonumber(ARGV[2])
+    local result = {}
+    for i = 3, #ARGV, k do
+        local found = 1
+        if (built) then
+            for j = i, i + k - 1 do
+                if (redis.call('getbit', KEYS[1], ARGV[j]) == 0) then
+                    found = 0
+                    break
+                end
+            end
+        end
+        result[#result + 1] = found
+    end
+    return result
+end
+if (not built) then
+    return 1
+end
+for i = 2, #ARGV do
+    if (redis.call('getbit', KEYS[1], ARGV[i]) == 0) then
+        -- 一定不存在
+        return 0
+    end
+end
+-- 可能存在
+return 1
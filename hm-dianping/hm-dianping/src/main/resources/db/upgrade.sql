@@ -0,0 +1,26 @@
+-- ----------------------------
+-- 已有数据库的升级语句 新建的库直接执行 hmdp.sql 即可
+-- 按顺序执行 已经执行过的段落跳过
+-- ----------------------------
+
+-- ----------------------------
+-- tb_voucher_order 按voucher_id查询订单的索引
+-- 预热秒杀券时 where voucher_id in (...) 分页读取已下单的用户 没有该索引时每一页都要全表扫描
+-- ----------------------------
+ALTER TABLE `tb_voucher_order` ADD INDEX `idx_voucher_id`(`voucher_id`) USING BTREE;
+
+-- ----------------------------
+-- tb_voucher_order 一人一单唯一索引改为 (user_id, voucher_id, active)
+-- active 是生成列 已取消的订单为NULL 不占用唯一索引 超时取消后用户可以再次购买 需要MySQL 5.7及以上
+-- 执行前确认没有重复的未取消订单 有结果时先处理重复数据
+--   SELECT user_id, voucher_id, COUNT(*) FROM tb_voucher_order WHERE status <> 4 GROUP BY user_id, voucher_id HAVING COUNT(*) > 1;
+-- ----------------------------
+-- 已经创建过旧的 uk_user_voucher(user_id, voucher_id)
+ALTER TABLE `tb_voucher_order`
+  ADD COLUMN `active` tinyint(1) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '未取消的订单为1 已取消为NULL 已取消的订单不占用一人一单的唯一索引',
+  DROP INDEX `uk_user_voucher`,
+  ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE;
+-- 从来没有创建过唯一索引的库 改为执行下面的语句
+-- ALTER TABLE `tb_voucher_order`
+--   ADD COLUMN `active` tinyint(1) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT '未取消的订单为1 已取消为NULL 已取消的订单不占用一人一单的唯一索引',
+--   ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE;
@@ -0,0 +1,18 @@
+-- 认领到期的未支付订单 ZRANGEBYSCORE + ZADD 在一个脚本中完成 多个节点同时认领时不会重复
+-- 认领的订单不直接删除 而是把score改为 claimUntil 处理完成后再ZREM 节点宕机时到期后会被重新认领
+-- KEYS[1] 未支付订单延时队列 seckill:unpaid
+-- ARGV[1] 当前时间(毫秒)
+-- ARGV[2] 每次最多认领的订单数
+-- ARGV[3] 认领的有效期 到这个时间(毫秒)还没处理完的订单可以被重新认领
+local ids = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+if (#ids == 0) then
+    return ids
+end
+local args = {}
+for i, id in ipairs(ids) do
+    args[#args + 1] = ARGV[3]
+    args[#args + 1] = id
+end
+-- XX 只更新已经存在的成员
+redis.call('zadd', KEYS[1], 'XX', unpack(args))
+return ids
@@ -4,6 +4,9 @@
 --- DateTime: 2023/11/25 16:55
 ---
 
+-- 脚本中调用了TIME 按命令的效果复制到从节点(redis 5之前默认复制脚本本身)
+redis.replicate_commands()
+
 -- 1.参数列表
 --1.1 优惠券id
 local voucherId = ARGV[1]
@@ -14,17 +17,68 @@ local userId = ARGV[2]
 --1.3 订单id
 local orderId =ARGV[3]
 
+--1.4 订单stream的分区数 不传为1
+local partitions = tonumber(ARGV[4] or '1')
+
+--1.5 分区键 voucherId 或 userId
+local partitionKey = ARGV[5] or 'voucherId'
+
+--1.6 全局令牌桶 每秒令牌数 为0时不限流
+local rate = tonumber(ARGV[6] or '0')
+
+--1.7 全局令牌桶容量
+local burst = tonumber(ARGV[7] or '1')
+
 
 --2.数据key
 --2.1 库存key
 local stockKey ='seckill:stock:' .. voucherId
 --2.2 订单key
 local orderKey ='seckill:order:' .. voucherId
+--2.3 秒杀元数据key begin/end 秒杀开始与结束时间(秒)
+local metaKey ='seckill:meta:' .. voucherId
+--2.4 全局令牌桶key tokens 剩余令牌 ts 上次取令牌的时间(微秒)
+local rateKey ='seckill:rate:' .. voucherId
+--2.5 订单消息队列key 分区时按 id 取模路由到 stream.orders:{n}
+local streamKey ='stream.orders'
+if (partitions > 1) then
+    local routeId = (partitionKey == 'userId') and userId or voucherId
+    streamKey = streamKey .. ':' .. (tonumber(routeId) % partitions)
+end
 
 -- 3.脚本业务
---3.1 判断库存是否充足 get stockKey
+--3.0 判断秒杀时间 用redis服务器的时间 TIME 没有元数据的券不做判断
+local meta = redis.call('hmget',metaKey,'begin','end')
+if(meta[1] or meta[2]) then
+    local now = tonumber(redis.call('time')[1])
+    if(meta[1] and now < tonumber(meta[1])) then
+--      秒杀尚未开始 返回3
+        return 3
+    end
+    if(meta[2] and now > tonumber(meta[2])) then
+--      秒杀已经结束 返回4
+        return 4
+    end
+end
+--3.1 全局令牌桶 先按流逝的时间补充令牌 不够一个时返回5 让用户稍后重试
+if(rate > 0) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+    local bucket = redis.call('hmget',rateKey,'tokens','ts')
+    local tokens = tonumber(bucket[1] or burst)
+    local ts = tonumber(bucket[2] or now)
+    tokens = math.min(burst, tokens + math.max(now - ts, 0) * rate / 1000000)
+    if(tokens < 1) then
+--      系统繁忙 返回5
+        return 5
+    end
+    redis.call('hmset',rateKey,'tokens',tostring(tokens - 1),'ts',tostring(now))
+--  桶装满所需的时间之后 key过期也不影响结果
+    redis.call('pexpire',rateKey,math.ceil(burst * 1000 / rate) + 1000)
+end
+--3.2 判断库存是否充足 get stockKey
 if(tonumber(redis.call('get',stockKey)) <= 0) then
---    3.2 库存不足 返回1
+--    库存不足 返回1
     return 1
 end
 --3.3 判断 用户是否下单 SISMEMBER orderKey userId
@@ -38,5 +92,5 @@ redis.call('incrby',stockKey,-1)
 redis.call('sadd',orderKey,userId)
 
 --3.6 有资格后 发送消息到队列中 XADD stream.orders * k1 v2 k2 v2 ...
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
 return 0
\ No newline at end of file
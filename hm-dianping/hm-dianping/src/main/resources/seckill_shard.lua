@@ -0,0 +1,75 @@
+---
+--- 分片库存秒杀脚本
+--- 一个分片的库存key与订单集合key使用同一个hash tag {voucherId:shard} 落在同一个slot
+--- 不同分片落在不同的slot 热点优惠券的请求分散到多个分片上
+---
+
+-- 1.参数列表
+--1.1 模式 home: 在用户所属的分片下单  take: 从一个分片最多取出n个库存  rebalance: 在所有分片之间重新平均库存
+local mode = ARGV[1]
+
+if (mode == 'home') then
+    --KEYS[1] 分片库存key KEYS[2] 用户所属分片的订单集合key ARGV[2] 用户id
+    local userId = ARGV[2]
+    --2.判断用户是否下单 SISMEMBER orderKey userId
+    if (redis.call('sismember', KEYS[2], userId) == 1) then
+        --存在重复下单 返回2
+        return 2
+    end
+    --3.先占住一人一单的位置 本分片没有库存时由调用方去其他分片取 都取不到再释放
+    redis.call('sadd', KEYS[2], userId)
+    --4.判断本分片库存是否充足
+    if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+        --本分片库存不足 返回1
+        return 1
+    end
+    --5.扣库存
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+
+if (mode == 'rebalance') then
+    --KEYS 该优惠券所有分片的库存key ARGV[2] 低水位 返回1代表做了平衡
+    --取出与补充在同一次调用中完成 库存不会处于中间状态 也不会因为节点宕机丢失
+    local lowWater = tonumber(ARGV[2])
+    local n = #KEYS
+    local stocks = redis.call('mget', unpack(KEYS))
+    local total = 0
+    local min = nil
+    for i = 1, n do
+        local stock = math.max(tonumber(stocks[i] or '0'), 0)
+        stocks[i] = stock
+        total = total + stock
+        if (min == nil or stock < min) then
+            min = stock
+        end
+    end
+    --2.还没有分片快卖完 或者剩余的库存平均下来也不够 不需要平衡
+    local avg = math.floor(total / n)
+    if (min > lowWater or avg <= lowWater) then
+        return 0
+    end
+    --3.每个分片设为平均值 除不尽的余数分给前面的分片
+    local remainder = total - avg * n
+    for i = 1, n do
+        local stock = avg
+        if (i <= remainder) then
+            stock = stock + 1
+        end
+        if (stock ~= stocks[i]) then
+            redis.call('set', KEYS[i], stock)
+        end
+    end
+    return 1
+end
+
+--take 模式 KEYS[1] 分片库存key ARGV[2] 最多取出的数量 返回实际取出的数量
+local n = tonumber(ARGV[2])
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+local taken = math.min(stock, n)
+if (taken > 0) then
+    redis.call('incrby', KEYS[1], -taken)
+else
+    taken = 0
+end
+return taken
@@ -0,0 +1,12 @@
+---
+--- 订单stream的维护脚本 通过EVALSHA执行 返回整数
+---
+
+--模式 trim: XTRIM KEYS[1] MINID ~ ARGV[2] 返回删除的消息数  memory: MEMORY USAGE KEYS[1] 返回占用的字节数
+local mode = ARGV[1]
+
+if (mode == 'trim') then
+    return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[2])
+end
+
+return redis.call('memory', 'usage', KEYS[1]) or 0
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 本地一级缓存 命中时不访问redis 空值缓存 失效通知 逻辑过期和命中统计
+ * redis相关的依赖传null 访问redis就会失败
+ */
+class CacheClientLocalTest {
+
+    private static final String PREFIX = "cache:shop:";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    //本地缓存命中时不能查询数据库
+    private static final Function<Long, String> NO_DB = id -> {
+        throw new AssertionError("不应该查询数据库");
+    };
+
+    private CacheClient client(boolean localEnabled) {
+        CacheProperties properties = new CacheProperties();
+        properties.getLocal().setEnabled(localEnabled);
+        return new CacheClient(null, properties, meterRegistry, new RedisMessageListenerContainer(),
+                null, null, null, null);
+    }
+
+    private double requests(String result) {
+        return meterRegistry.get("cache.local.requests").tag("prefix", PREFIX).tag("result", result).counter().count();
+    }
+
+    @Test
+    void disabledNeverStores() {
+        CacheClient client = client(false);
+        client.putLocal(PREFIX, PREFIX + 1, "茶餐厅", 0);
+        assertNull(client.getLocal(PREFIX, PREFIX + 1));
+    }
+
+    @Test
+    void hitIsServedWithoutRedis() {
+        CacheClient client = client(true);
+        client.putLocal(PREFIX, PREFIX + 1, "茶餐厅", 0);
+        assertEquals("茶餐厅", client.queryWithPassThrough(PREFIX, 1L, String.class, NO_DB, 30L, TimeUnit.MINUTES));
+    }
+
+    @Test
+    void nullValueIsCached() {
+        CacheClient client = client(true);
+        client.putLocal(PREFIX, PREFIX + 2, null, 0);
+        CacheClient.LocalEntry entry = client.getLocal(PREFIX, PREFIX + 2);
+        assertNotNull(entry);
+        assertNull(entry.value);
+        assertNull(client.queryWithPassThrough(PREFIX, 2L, String.class, NO_DB, 30L, TimeUnit.MINUTES));
+    }
+
+    @Test
+    void invalidationMessageRemovesEntry() {
+        CacheClient client = client(true);
+        client.putLocal(PREFIX, PREFIX + 3, "茶餐厅", 0);
+        client.putLocal(PREFIX, PREFIX + 4, "火锅", 0);
+        client.onMessage(new DefaultMessage(CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                (PREFIX + 3).getBytes(StandardCharsets.UTF_8)), null);
+        assertNull(client.getLocal(PREFIX, PREFIX + 3));
+        assertNotNull(client.getLocal(PREFIX, PREFIX + 4));
+    }
+
+    @Test
+    void logicalExpireIsCheckedOnLocalHit() {
+        CacheClient client = client(true);
+        long now = System.currentTimeMillis();
+        client.putLocal(PREFIX, PREFIX + 5, "茶餐厅", now + 60_000);
+        client.putLocal(PREFIX, PREFIX + 6, "火锅", now - 1);
+
+        CacheClient.LocalEntry fresh = client.getFreshLocal(PREFIX, PREFIX + 5, 5L, NO_DB, 30L, TimeUnit.MINUTES);
+        assertNotNull(fresh);
+        assertEquals("茶餐厅", fresh.value);
+        //已逻辑过期 交给redis和重建处理
+        assertNull(client.getFreshLocal(PREFIX, PREFIX + 6, 6L, NO_DB, 30L, TimeUnit.MINUTES));
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        CacheClient client = client(true);
+        assertNull(client.getLocal(PREFIX, PREFIX + 7));
+        client.putLocal(PREFIX, PREFIX + 7, "茶餐厅", 0);
+        client.getLocal(PREFIX, PREFIX + 7);
+        client.getLocal(PREFIX, PREFIX + 7);
+        assertEquals(2, requests("hit"));
+        assertEquals(1, requests("miss"));
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * XFetch提前重建的判断 在随机数边界和到期边界上的结果
+ */
+class CacheClientXFetchTest {
+
+    private static final long EXPIRE_AT = 1_700_000_000_000L;
+
+    private static final long REBUILD_MILLIS = 200;
+
+    private static final double BETA = 1.0;
+
+    @Test
+    void randZeroNeverRefreshesBeforeExpire() {
+        //rand为0时间隔为0 只有到期后才重建
+        assertFalse(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, BETA, EXPIRE_AT - 1, 0));
+        assertTrue(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, BETA, EXPIRE_AT, 0));
+    }
+
+    @Test
+    void randNearOneIsBoundedByDoublePrecision() {
+        //nextDouble的最大值是 1 - 2^-53 间隔最多约为 36.7 倍重建耗时 不会无限提前
+        double rand = Math.nextDown(1.0);
+        assertTrue(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, BETA, EXPIRE_AT - 36 * REBUILD_MILLIS, rand));
+        assertFalse(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, BETA, EXPIRE_AT - 37 * REBUILD_MILLIS, rand));
+    }
+
+    @Test
+    void gapOfOneRebuildIsInclusive() {
+        //-ln(1 - rand) = 1 时间隔正好是 rebuildMillis * beta
+        double rand = 1 - Math.exp(-1);
+        assertTrue(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, BETA, EXPIRE_AT - REBUILD_MILLIS + 1, rand));
+        assertFalse(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, BETA, EXPIRE_AT - REBUILD_MILLIS - 1, rand));
+    }
+
+    @Test
+    void betaScalesTheGap() {
+        double rand = 1 - Math.exp(-1);
+        long now = EXPIRE_AT - 3 * REBUILD_MILLIS / 2;
+        assertFalse(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, 1.0, now, rand));
+        assertTrue(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, 2.0, now, rand));
+    }
+
+    @Test
+    void zeroBetaOrRebuildMillisOnlyRefreshesAfterExpire() {
+        double rand = Math.nextDown(1.0);
+        assertFalse(CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, 0, EXPIRE_AT - 1, rand));
+        assertFalse(CacheClient.xfetch(EXPIRE_AT, 0, BETA, EXPIRE_AT - 1, rand));
+    }
+
+    @Test
+    void probabilityMatchesRemainingTime() {
+        //剩余时间为一次重建耗时 概率为 1/e 扫描均匀分布的rand统计
+        long now = EXPIRE_AT - REBUILD_MILLIS;
+        int samples = 100_000;
+        int refreshed = 0;
+        for (int i = 0; i < samples; i++) {
+            if (CacheClient.xfetch(EXPIRE_AT, REBUILD_MILLIS, BETA, now, (i + 0.5) / samples)) {
+                refreshed++;
+            }
+        }
+        assertEquals(Math.exp(-1), (double) refreshed / samples, 1e-3);
+    }
+}
@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CacheCodecs 的字节格式与 ShopCacheCodec 的往返编码
+ */
+class CacheCodecsTest {
+
+    private static final long EXPIRE_AT = 1_700_000_000_123L;
+
+    private static CacheCodecs codecs(CacheProperties.Format format) {
+        CacheProperties properties = new CacheProperties();
+        properties.getCodec().setFormat(format);
+        return new CacheCodecs(Collections.singletonList(new ShopCacheCodec()), properties);
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(7L)
+                .setName("茶餐厅")
+                .setTypeId(1L)
+                .setImages("a.jpg,b.jpg")
+                .setArea("大关")
+                .setAddress("金华路")
+                .setX(120.149993)
+                .setY(30.334229)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123_000_000))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    @Test
+    void binaryWithoutRebuildMillis() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        byte[] raw = codecs.encode(shop(), EXPIRE_AT);
+
+        //格式字节 + 版本 + 8字节过期时间
+        assertEquals(CacheCodecs.FORMAT_BINARY, raw[0]);
+        assertEquals(new ShopCacheCodec().version(), raw[1]);
+        assertEquals(EXPIRE_AT, ByteBuffer.wrap(raw, 2, 8).getLong());
+
+        CacheCodecs.CacheValue<Shop> value = codecs.decode(raw, Shop.class, true);
+        assertNotNull(value);
+        assertEquals(shop(), value.getValue());
+        assertEquals(EXPIRE_AT, value.getExpireAt());
+        assertEquals(0, value.getRebuildMillis());
+    }
+
+    @Test
+    void binaryWithRebuildMillis() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        byte[] raw = codecs.encode(shop(), EXPIRE_AT, 250);
+
+        //过期时间之后多4字节的重建耗时
+        assertEquals(CacheCodecs.FORMAT_BINARY_REBUILD, raw[0]);
+        assertEquals(EXPIRE_AT, ByteBuffer.wrap(raw, 2, 8).getLong());
+        assertEquals(250, ByteBuffer.wrap(raw, 10, 4).getInt());
+
+        CacheCodecs.CacheValue<Shop> value = codecs.decode(raw, Shop.class, true);
+        assertNotNull(value);
+        assertEquals(shop(), value.getValue());
+        assertEquals(EXPIRE_AT, value.getExpireAt());
+        assertEquals(250, value.getRebuildMillis());
+    }
+
+    @Test
+    void binaryWithoutLogicalExpire() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        CacheCodecs.CacheValue<Shop> value = codecs.decode(codecs.encode(shop(), 0), Shop.class, false);
+        assertNotNull(value);
+        assertEquals(shop(), value.getValue());
+        assertEquals(0, value.getExpireAt());
+    }
+
+    @Test
+    void binaryKeepsNullFields() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        Shop shop = new Shop().setId(8L).setName("只有名字");
+        CacheCodecs.CacheValue<Shop> value = codecs.decode(codecs.encode(shop, 0), Shop.class, false);
+        assertNotNull(value);
+        assertEquals(shop, value.getValue());
+    }
+
+    @Test
+    void versionMismatchIsMiss() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        byte[] raw = codecs.encode(shop(), EXPIRE_AT);
+        raw[1]++;
+        assertNull(codecs.decode(raw, Shop.class, true));
+    }
+
+    @Test
+    void truncatedHeaderIsMiss() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        byte[] raw = codecs.encode(shop(), EXPIRE_AT, 250);
+        assertNull(codecs.decode(Arrays.copyOf(raw, 12), Shop.class, true));
+    }
+
+    @Test
+    void unknownFormatByteIsMiss() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        byte[] raw = codecs.encode(shop(), EXPIRE_AT);
+        raw[0] = 0x03;
+        assertNull(codecs.decode(raw, Shop.class, true));
+    }
+
+    @Test
+    void jsonFormatWritesJson() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.JSON);
+        byte[] raw = codecs.encode(shop(), 0);
+        assertEquals('{', raw[0]);
+
+        CacheCodecs.CacheValue<Shop> value = codecs.decode(raw, Shop.class, false);
+        assertNotNull(value);
+        assertEquals(shop(), value.getValue());
+        assertEquals(0, value.getExpireAt());
+    }
+
+    @Test
+    void jsonLogicalExpireUsesRedisData() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.JSON);
+        byte[] raw = codecs.encode(shop(), EXPIRE_AT, 250);
+        String json = new String(raw, StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"expireTime\""));
+        assertTrue(json.contains("\"data\""));
+
+        CacheCodecs.CacheValue<Shop> value = codecs.decode(raw, Shop.class, true);
+        assertNotNull(value);
+        assertEquals(shop(), value.getValue());
+        assertEquals(EXPIRE_AT, value.getExpireAt());
+        assertEquals(250, value.getRebuildMillis());
+    }
+
+    @Test
+    void typeWithoutCodecFallsBackToJson() {
+        CacheCodecs codecs = codecs(CacheProperties.Format.BINARY);
+        UserDTO user = new UserDTO();
+        user.setId(3L);
+        user.setNickName("小鱼同学");
+        byte[] raw = codecs.encode(user, 0);
+        assertEquals('{', raw[0]);
+
+        CacheCodecs.CacheValue<UserDTO> value = codecs.decode(raw, UserDTO.class, false);
+        assertNotNull(value);
+        assertEquals(user, value.getValue());
+    }
+
+    @Test
+    void binaryReaderAcceptsJsonWrittenByOldNodes() {
+        byte[] raw = codecs(CacheProperties.Format.JSON).encode(shop(), EXPIRE_AT);
+        CacheCodecs.CacheValue<Shop> value = codecs(CacheProperties.Format.BINARY).decode(raw, Shop.class, true);
+        assertNotNull(value);
+        assertEquals(shop(), value.getValue());
+        assertEquals(EXPIRE_AT, value.getExpireAt());
+    }
+}
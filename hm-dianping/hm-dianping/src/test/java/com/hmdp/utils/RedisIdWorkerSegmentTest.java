@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 号段缓冲的发放 预取 用完切换 跨天切换 以及丢弃过期的预取号段
+ */
+class RedisIdWorkerSegmentTest {
+
+    private static final long DAY = 19000;
+
+    //按顺序返回预先安排好的号段 记录每次领取的日期
+    private final Deque<RedisIdWorker.Segment> scripted = new ArrayDeque<>();
+
+    private final List<Long> leasedDays = new ArrayList<>();
+
+    //手动执行的预取线程池
+    private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+    private RedisIdWorker.SegmentBuffer buffer() {
+        return new RedisIdWorker.SegmentBuffer("order", day -> {
+            leasedDays.add(day);
+            RedisIdWorker.Segment segment = scripted.poll();
+            if (segment == null) {
+                throw new IllegalStateException("没有安排号段");
+            }
+            return segment;
+        }, tasks::add);
+    }
+
+    //步长10 用到第8个时预取
+    private static RedisIdWorker.Segment segment(long day, long start) {
+        return new RedisIdWorker.Segment(day, start, start + 9, start + 7);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+    }
+
+    @Test
+    void handsOutSegmentInOrderAndPrefetchesAtThreshold() {
+        scripted.add(segment(DAY, 1));
+        scripted.add(segment(DAY, 11));
+        RedisIdWorker.SegmentBuffer buffer = buffer();
+
+        for (long expected = 1; expected <= 7; expected++) {
+            assertEquals(expected, buffer.next(DAY));
+        }
+        assertTrue(tasks.isEmpty());
+        assertEquals(8, buffer.next(DAY));
+        assertEquals(1, tasks.size());
+        runTasks();
+
+        assertEquals(9, buffer.next(DAY));
+        assertEquals(10, buffer.next(DAY));
+        //用完后切换到预取的号段 不再同步领取
+        assertEquals(11, buffer.next(DAY));
+        assertEquals(2, leasedDays.size());
+    }
+
+    @Test
+    void leasesSynchronouslyWhenPrefetchNotFinished() {
+        scripted.add(segment(DAY, 1));
+        scripted.add(segment(DAY, 11));
+        RedisIdWorker.SegmentBuffer buffer = buffer();
+
+        for (int i = 0; i < 10; i++) {
+            buffer.next(DAY);
+        }
+        //预取任务还在排队 同步领取
+        assertEquals(11, buffer.next(DAY));
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    void discardsPrefetchedSegmentBehindCurrent() {
+        //预取先INCRBY拿到11-20 但晚于同步领取的21-30完成
+        scripted.add(segment(DAY, 1));
+        scripted.add(segment(DAY, 21));
+        scripted.add(segment(DAY, 11));
+        scripted.add(segment(DAY, 31));
+        RedisIdWorker.SegmentBuffer buffer = buffer();
+
+        for (int i = 0; i < 10; i++) {
+            buffer.next(DAY);
+        }
+        assertEquals(21, buffer.next(DAY));
+        runTasks();
+
+        long last = 21;
+        for (int i = 0; i < 9; i++) {
+            last = buffer.next(DAY);
+        }
+        assertEquals(30, last);
+        //11-20 比当前号段小 被丢弃 同一天的id不会变小
+        assertEquals(31, buffer.next(DAY));
+    }
+
+    @Test
+    void rollsOverToNewDay() {
+        scripted.add(segment(DAY, 1));
+        scripted.add(segment(DAY + 1, 1));
+        RedisIdWorker.SegmentBuffer buffer = buffer();
+
+        assertEquals(1, buffer.next(DAY));
+        assertEquals(2, buffer.next(DAY));
+        //跨天后没用完的号段作废 重新领取新日期的号段
+        assertEquals(1, buffer.next(DAY + 1));
+        assertEquals(2, buffer.next(DAY + 1));
+        assertEquals(DAY + 1, (long) leasedDays.get(1));
+    }
+
+    @Test
+    void discardsPrefetchedSegmentOfPreviousDay() {
+        scripted.add(segment(DAY, 1));
+        scripted.add(segment(DAY + 1, 1));
+        scripted.add(segment(DAY, 11));
+        scripted.add(segment(DAY + 1, 11));
+        RedisIdWorker.SegmentBuffer buffer = buffer();
+
+        for (int i = 0; i < 8; i++) {
+            buffer.next(DAY);
+        }
+        //预取还没完成就跨天了 完成后前一天的号段被丢弃
+        assertEquals(1, buffer.next(DAY + 1));
+        runTasks();
+
+        for (int i = 0; i < 6; i++) {
+            buffer.next(DAY + 1);
+        }
+        //新一天的第8个正常触发预取
+        assertEquals(8, buffer.next(DAY + 1));
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(9, buffer.next(DAY + 1));
+        assertEquals(10, buffer.next(DAY + 1));
+        assertEquals(11, buffer.next(DAY + 1));
+        assertEquals(4, leasedDays.size());
+        assertEquals(DAY + 1, (long) leasedDays.get(3));
+    }
+
+    @Test
+    void failedPrefetchFallsBackToSynchronousLease() {
+        scripted.add(segment(DAY, 1));
+        RedisIdWorker.SegmentBuffer buffer = buffer();
+
+        for (int i = 0; i < 8; i++) {
+            buffer.next(DAY);
+        }
+        //预取时没有安排号段 领取失败
+        runTasks();
+        scripted.add(segment(DAY, 11));
+        buffer.next(DAY);
+        buffer.next(DAY);
+        assertEquals(11, buffer.next(DAY));
+    }
+
+    @Test
+    void rejectedPrefetchDoesNotBreakNext() {
+        scripted.add(segment(DAY, 1));
+        scripted.add(segment(DAY, 11));
+        RedisIdWorker.SegmentBuffer buffer = new RedisIdWorker.SegmentBuffer("order", day -> scripted.poll(), task -> {
+            throw new RejectedExecutionException("shutdown");
+        });
+
+        for (long expected = 1; expected <= 11; expected++) {
+            assertEquals(expected, buffer.next(DAY));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 本地令牌桶(GCRA)在突发 持续速率和极限速率下的放行结果
+ */
+class SeckillRateLimiterTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000_000_000L);
+
+    private SeckillRateLimiter.TokenBucket bucket(long rate, long burst) {
+        return new SeckillRateLimiter.TokenBucket(rate, burst, clock::get);
+    }
+
+    private static int acquireAll(SeckillRateLimiter.TokenBucket bucket, int attempts) {
+        int passed = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (bucket.tryAcquire()) {
+                passed++;
+            }
+        }
+        return passed;
+    }
+
+    @Test
+    void burstThenReject() {
+        SeckillRateLimiter.TokenBucket bucket = bucket(10, 5);
+        assertEquals(5, acquireAll(bucket, 20));
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void refillsOneTokenPerInterval() {
+        SeckillRateLimiter.TokenBucket bucket = bucket(10, 5);
+        acquireAll(bucket, 5);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(99));
+        assertFalse(bucket.tryAcquire());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void steadyRateAlwaysPasses() {
+        SeckillRateLimiter.TokenBucket bucket = bucket(1000, 1);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(bucket.tryAcquire());
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @Test
+    void idleTimeDoesNotExceedBurst() {
+        //空闲很久之后 最多也只能突发burst个
+        SeckillRateLimiter.TokenBucket bucket = bucket(10, 5);
+        clock.addAndGet(TimeUnit.HOURS.toNanos(1));
+        assertEquals(5, acquireAll(bucket, 20));
+    }
+
+    @Test
+    void zeroBurstActsAsOne() {
+        SeckillRateLimiter.TokenBucket bucket = bucket(10, 0);
+        assertEquals(1, acquireAll(bucket, 5));
+    }
+
+    @Test
+    void rateOfOneBillionPerSecond() {
+        SeckillRateLimiter.TokenBucket bucket = bucket(1_000_000_000L, 3);
+        assertEquals(3, acquireAll(bucket, 10));
+        clock.incrementAndGet();
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void rateAboveOneBillionStillLimits() {
+        //1e9 / rate 整除为0 间隔按1纳秒计算 不能变成不限流
+        SeckillRateLimiter.TokenBucket bucket = bucket(3_000_000_000L, 2);
+        assertEquals(2, acquireAll(bucket, 10));
+        clock.incrementAndGet();
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+}